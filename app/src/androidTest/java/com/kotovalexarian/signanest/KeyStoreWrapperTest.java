@@ -1,8 +1,15 @@
 package com.kotovalexarian.signanest;
 
+import android.security.keystore.KeyProperties;
+
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
+import com.kotovalexarian.signanest.key_store.BulkVerifier;
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyMetadata;
+import com.kotovalexarian.signanest.key_store.KeyPool;
 import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
 import com.kotovalexarian.signanest.key_store.OwnException;
 
 import org.junit.After;
@@ -11,13 +18,24 @@ import org.junit.BeforeClass;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.security.KeyStore;
+import java.security.Signature;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
 import java.util.Enumeration;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 @RunWith(AndroidJUnit4.class)
@@ -70,6 +88,45 @@ public class KeyStoreWrapperTest {
         assertEquals("foo", keyStoreWrapper.getByPosition(1).getAlias());
     }
 
+    @Test
+    public void changes() throws OwnException {
+        final ArrayList<String> changes = new ArrayList<>();
+
+        keyStoreWrapper.addChangeListener(new KeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final KeyWrapper keyWrapper) {
+                changes.add("+" + position + keyWrapper.getAlias());
+            }
+
+            @Override
+            public void onRemoved(final int position, final KeyWrapper keyWrapper) {
+                changes.add("-" + position + keyWrapper.getAlias());
+            }
+        });
+
+        keyStoreWrapper.create("foo");
+        final KeyWrapper foo = keyStoreWrapper.getByAlias("foo");
+        keyStoreWrapper.create("bar");
+        keyStoreWrapper.getByAlias("bar").delete();
+        keyStoreWrapper.refresh();
+
+        assertSame(foo, keyStoreWrapper.getByAlias("foo"));
+        assertEquals(Arrays.asList("+0foo", "+0bar", "-0bar"), changes);
+    }
+
+    @Test
+    public void createAllAndDeleteAll() throws OwnException {
+        keyStoreWrapper.createAll(Arrays.asList("foo", "bar", "car"));
+        assertEquals(3, keyStoreWrapper.getCount());
+        assertEquals("bar", keyStoreWrapper.getByPosition(0).getAlias());
+        assertEquals("car", keyStoreWrapper.getByPosition(1).getAlias());
+        assertEquals("foo", keyStoreWrapper.getByPosition(2).getAlias());
+
+        keyStoreWrapper.deleteAll(Arrays.asList("bar", "foo"));
+        assertEquals(1, keyStoreWrapper.getCount());
+        assertEquals("car", keyStoreWrapper.getByPosition(0).getAlias());
+    }
+
     @Test
     public void encryptionAndDecryption() throws OwnException {
         final String alias = "foo";
@@ -81,6 +138,46 @@ public class KeyStoreWrapperTest {
         assertEquals(plainText, keyStoreWrapper.getByAlias(alias).decrypt(cypherText));
     }
 
+    @Test
+    public void binaryEncryptionAndSigning() throws OwnException {
+        keyStoreWrapper.create("foo");
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+
+        final byte[] text = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(text, keyWrapper.decrypt(keyWrapper.encrypt(text)));
+
+        final ByteBuffer cipherText = ByteBuffer.allocateDirect(keyWrapper.getBlockSize());
+        keyWrapper.encrypt(ByteBuffer.wrap(text), cipherText);
+        cipherText.flip();
+        final ByteBuffer plainText = ByteBuffer.allocate(keyWrapper.getBlockSize());
+        assertEquals(text.length, keyWrapper.decrypt(cipherText, plainText));
+        assertArrayEquals(text, Arrays.copyOf(plainText.array(), text.length));
+
+        final ByteBuffer signature = ByteBuffer.allocate(keyWrapper.getSignatureSize());
+        keyWrapper.sign(ByteBuffer.wrap(text), signature);
+        signature.flip();
+        assertTrue(keyWrapper.verify(ByteBuffer.wrap(text), signature));
+        assertTrue(keyWrapper.verify(text, keyWrapper.sign(text)));
+    }
+
+    @Test
+    public void envelopeEncryptionAndDecryption() throws OwnException {
+        final String alias = "foo";
+        keyStoreWrapper.create(alias);
+
+        final byte[] plainText = new byte[100000];
+        for (int i = 0; i < plainText.length; ++i) plainText[i] = (byte)i;
+
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+        final ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        keyWrapper.encrypt(new ByteArrayInputStream(plainText), cipherText);
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        keyWrapper.decrypt(new ByteArrayInputStream(cipherText.toByteArray()), decrypted);
+
+        assertArrayEquals(plainText, decrypted.toByteArray());
+    }
+
     @Test
     public void signingAndVerifying() throws OwnException {
         final String alias = "foo";
@@ -96,12 +193,182 @@ public class KeyStoreWrapperTest {
         assertFalse(keyStoreWrapper.getByAlias(alias).verify(text, invalidSignature));
     }
 
+    @Test
+    public void signingAndVerifyingWithEc() throws OwnException {
+        final String alias = "foo";
+        keyStoreWrapper.create(alias, KeyAlgorithm.EC);
+
+        final String text = "Hello, World!";
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+        final String signature = keyWrapper.sign(text);
+
+        assertEquals("EC", keyWrapper.getAlgorithm());
+        assertEquals(64, Base64.getDecoder().decode(signature).length);
+        assertTrue(keyWrapper.verify(text, signature));
+        assertFalse(keyWrapper.verify("Hello, World?", signature));
+    }
+
+    @Test(expected = OwnException.class)
+    public void encryptingWithEc() throws OwnException {
+        keyStoreWrapper.create("foo", KeyAlgorithm.EC);
+        keyStoreWrapper.getByAlias("foo").encrypt("Hello, World!");
+    }
+
+    @Test
+    public void verifyingWithPublicKey() throws Exception {
+        keyStoreWrapper.create("foo");
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+
+        final byte[] text = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+        final byte[] signature = keyWrapper.sign(ByteBuffer.wrap(text));
+
+        final Signature verifier = Signature.getInstance("SHA256withRSA");
+        verifier.initVerify(keyWrapper.getPublicKey());
+        verifier.update(text);
+        assertTrue(verifier.verify(signature));
+
+        final boolean[] results = new boolean[4];
+        final Thread[] threads = new Thread[results.length];
+
+        for (int i = 0; i < threads.length; ++i) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        results[index] = keyWrapper.verify(ByteBuffer.wrap(text), signature);
+                    } catch (OwnException e) {
+                        results[index] = false;
+                    }
+                }
+            });
+            threads[i].start();
+        }
+
+        for (Thread thread : threads) thread.join();
+        for (boolean result : results) assertTrue(result);
+    }
+
+    @Test
+    public void signingAndVerifyingStreams() throws OwnException {
+        final String alias = "foo";
+        keyStoreWrapper.create(alias);
+
+        final byte[] text = new byte[100000];
+        for (int i = 0; i < text.length; ++i) text[i] = (byte)i;
+
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+        final byte[] signature = keyWrapper.sign(new ByteArrayInputStream(text));
+
+        assertTrue(keyWrapper.verify(ByteBuffer.wrap(text), signature));
+        assertTrue(keyWrapper.verify(
+                Channels.newChannel(new ByteArrayInputStream(text)),
+                signature));
+
+        text[0] = 1;
+        assertFalse(keyWrapper.verify(new ByteArrayInputStream(text), signature));
+    }
+
+    @Test
+    public void batchSigningAndVerifying() throws OwnException {
+        final String alias = "foo";
+        keyStoreWrapper.create(alias);
+
+        final ArrayList<byte[]> texts = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) {
+            texts.add(("Record " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+        final ArrayList<byte[]> signatures =
+                new ArrayList<>(Arrays.asList(keyWrapper.signAll(texts, 4)));
+        signatures.set(3, signatures.get(4));
+
+        final boolean[] results = keyWrapper.verifyAll(texts, signatures, 4);
+
+        for (int i = 0; i < results.length; ++i) {
+            assertEquals(i != 3, results[i]);
+        }
+    }
+
+    @Test
+    public void keyPool() throws Exception {
+        final File aliasMapFile = File.createTempFile("key_pool", ".properties");
+        aliasMapFile.delete();
+
+        final KeyPool keyPool =
+                new KeyPool(aliasMapFile, KeyAlgorithm.RSA, 1, KeyPool.RefillPolicy.MANUAL);
+        keyStoreWrapper = new KeyStoreWrapper(keyPool);
+
+        assertTrue(keyStoreWrapper.needsKeyPoolRefill());
+        keyStoreWrapper.refillKeyPool();
+        assertFalse(keyStoreWrapper.needsKeyPoolRefill());
+        assertEquals(0, keyStoreWrapper.getCount());
+
+        keyStoreWrapper.create("foo");
+        assertEquals(0, keyPool.getSpareCount());
+        assertEquals("foo", keyStoreWrapper.getByPosition(0).getAlias());
+
+        final String text = "Hello, World!";
+        final String signature = keyStoreWrapper.getByAlias("foo").sign(text);
+
+        // A new wrapper must find the claimed key by the persisted alias map.
+        keyStoreWrapper = new KeyStoreWrapper(
+                new KeyPool(aliasMapFile, KeyAlgorithm.RSA, 1, KeyPool.RefillPolicy.MANUAL));
+        assertEquals(1, keyStoreWrapper.getCount());
+        assertTrue(keyStoreWrapper.getByAlias("foo").verify(text, signature));
+
+        keyStoreWrapper.getByAlias("foo").delete();
+        assertEquals(0, keyStoreWrapper.getCount());
+
+        aliasMapFile.delete();
+    }
+
+    @Test
+    public void bulkVerifying() throws OwnException {
+        keyStoreWrapper.create("foo");
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+
+        final ArrayList<byte[]> texts = new ArrayList<>();
+        for (int i = 0; i < 500; ++i) {
+            texts.add(("Hello, World! " + i).getBytes(StandardCharsets.UTF_8));
+        }
+
+        final ArrayList<byte[]> signatures =
+                new ArrayList<>(Arrays.asList(keyWrapper.signAll(texts, 4)));
+        signatures.set(10, signatures.get(11));
+        signatures.set(20, new byte[] { 1, 2, 3 });
+
+        final BulkVerifier.Report report =
+                new BulkVerifier().verify(keyWrapper, texts, signatures);
+
+        assertEquals(500, report.getCount());
+        assertEquals(2, report.getFailedCount());
+        assertFalse(report.isPassed(10));
+        assertFalse(report.isPassed(20));
+        assertTrue(report.isPassed(11));
+        assertTrue(report.getThroughput() > 0);
+    }
+
     @Test
     public void getInfo() throws OwnException {
         keyStoreWrapper.create("foo");
         assertEquals("RSA", keyStoreWrapper.getByAlias("foo").getAlgorithm());
     }
 
+    @Test
+    public void getMetadata() throws OwnException {
+        keyStoreWrapper.create("foo");
+
+        final KeyMetadata keyMetadata = keyStoreWrapper.getByAlias("foo").getMetadata();
+
+        assertEquals("foo", keyMetadata.getAlias());
+        assertEquals("RSA", keyMetadata.getAlgorithm());
+        assertEquals(2048, keyMetadata.getKeySize());
+        assertTrue((keyMetadata.getPurposes() & KeyProperties.PURPOSE_SIGN) != 0);
+        assertNotNull(keyMetadata.getCreationDate());
+    }
+
     @Test(expected = IndexOutOfBoundsException.class)
     public void indexOutOfBoundsWhenNoAliasesExist() throws OwnException {
         keyStoreWrapper.getByPosition(0);
@@ -0,0 +1,30 @@
+package com.kotovalexarian.signanest;
+
+import android.os.Bundle;
+import android.view.LayoutInflater;
+import android.view.View;
+import android.view.ViewGroup;
+import android.widget.TextView;
+
+import androidx.fragment.app.Fragment;
+
+import com.kotovalexarian.signanest.key_store.Metrics;
+
+public class DiagnosticsFragment extends Fragment {
+    private TextView metricsTextView;
+
+    @Override
+    public View onCreateView(
+            final LayoutInflater inflater,
+            final ViewGroup container,
+            final Bundle savedInstanceState)
+    {
+        return inflater.inflate(R.layout.fragment_diagnostics, container, false);
+    }
+
+    @Override
+    public void onViewCreated(final View view, final Bundle savedInstanceState) {
+        metricsTextView = getView().findViewById(R.id.metricsTextView);
+        metricsTextView.setText(Metrics.export());
+    }
+}
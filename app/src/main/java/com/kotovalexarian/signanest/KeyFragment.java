@@ -9,16 +9,14 @@ import android.widget.TextView;
 import androidx.fragment.app.Fragment;
 import androidx.navigation.Navigation;
 
-import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
-import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
 import com.kotovalexarian.signanest.key_store.OwnException;
 
 public class KeyFragment extends Fragment {
     public static final String ARG_ALIAS = "alias";
 
     private String argAlias;
-    private KeyStoreWrapper keyStoreWrapper;
-    private KeyWrapper keyWrapper;
+    private AsyncKeyStoreWrapper asyncKeyStoreWrapper;
 
     private TextView keyNameTextView;
     private TextView keyInfoTextView;
@@ -41,12 +39,9 @@ public class KeyFragment extends Fragment {
 
         argAlias = getArguments().getString(ARG_ALIAS);
 
-        try {
-            keyStoreWrapper = new KeyStoreWrapper();
-            keyWrapper = keyStoreWrapper.getByAlias(argAlias);
-        } catch (OwnException e) {
-            throw new RuntimeException("Key store failure", e);
-        }
+        asyncKeyStoreWrapper =
+                ((SignanestApplication)requireActivity().getApplication())
+                        .getAsyncKeyStoreWrapper();
     }
 
     @Override
@@ -64,10 +59,20 @@ public class KeyFragment extends Fragment {
         keyInfoTextView = getView().findViewById(R.id.keyInfoTextView);
         keyNameTextView.setText(argAlias);
 
-        try {
-            keyInfoTextView.setText(keyWrapper.getInfo());
-        } catch (OwnException e) {
-            throw new RuntimeException("Key store failure", e);
-        }
+        asyncKeyStoreWrapper.getInfo(argAlias, new AsyncKeyStoreWrapper.Callback<String>() {
+            @Override
+            public void onSuccess(final String info) {
+                if (getView() == null) return; // Left before the result came
+
+                keyInfoTextView.setText(info);
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {
+                if (getView() == null) return;
+
+                throw new RuntimeException("Key store failure", e);
+            }
+        });
     }
 }
@@ -2,6 +2,9 @@ package com.kotovalexarian.signanest;
 
 import android.os.Bundle;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuInflater;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.TextView;
@@ -13,15 +16,19 @@ import androidx.recyclerview.widget.RecyclerView;
 import androidx.swiperefreshlayout.widget.SwipeRefreshLayout;
 
 import com.google.android.material.floatingactionbutton.FloatingActionButton;
-import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
-import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyMetadata;
+import com.kotovalexarian.signanest.key_store.KeyMetadataCache;
 import com.kotovalexarian.signanest.key_store.OwnException;
 
 public class KeyListFragment extends Fragment {
     private RecyclerView recyclerView;
     private RecyclerView.LayoutManager recyclerViewLayoutManager;
-    private RecyclerView.Adapter recyclerViewAdapter;
-    private KeyStoreWrapper keyStoreWrapper;
+    private RecyclerViewAdapter recyclerViewAdapter;
+    private AsyncKeyStoreWrapper asyncKeyStoreWrapper;
+    private KeyMetadataCache keyMetadataCache;
+    private AsyncKeyStoreWrapper.OnChangeListener onChange;
+    private KeyMetadataCache.OnLoadListener onLoad;
     private FloatingActionButton newKeyFab;
     private SwipeRefreshLayout swipeRefreshLayout;
 
@@ -35,6 +42,22 @@ public class KeyListFragment extends Fragment {
     @Override
     public void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+        setHasOptionsMenu(true);
+    }
+
+    @Override
+    public void onCreateOptionsMenu(final Menu menu, final MenuInflater inflater) {
+        inflater.inflate(R.menu.key_list, menu);
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(final MenuItem item) {
+        if (item.getItemId() == R.id.diagnosticsMenuItem) {
+            Navigation.findNavController(getView()).navigate(R.id.diagnosticsAction);
+            return true;
+        }
+
+        return super.onOptionsItemSelected(item);
     }
 
     @Override
@@ -48,29 +71,51 @@ public class KeyListFragment extends Fragment {
 
     @Override
     public void onViewCreated(final View view, final Bundle savedInstanceState) {
-        try {
-            keyStoreWrapper = new KeyStoreWrapper();
-        } catch (OwnException e) {
-            throw new RuntimeException("Key store wrapper failure", e);
-        }
+        final SignanestApplication application =
+                (SignanestApplication)requireActivity().getApplication();
+        asyncKeyStoreWrapper = application.getAsyncKeyStoreWrapper();
+        keyMetadataCache = application.getKeyMetadataCache();
 
         recyclerView = (RecyclerView)getView().findViewById(R.id.recyclerView);
         recyclerView.setHasFixedSize(true);
         recyclerViewLayoutManager = new LinearLayoutManager(getView().getContext());
         recyclerView.setLayoutManager(recyclerViewLayoutManager);
-        recyclerViewAdapter = new RecyclerViewAdapter(keyStoreWrapper);
+        recyclerViewAdapter = new RecyclerViewAdapter(asyncKeyStoreWrapper, keyMetadataCache);
         recyclerView.setAdapter(recyclerViewAdapter);
 
-        try {
-            keyStoreWrapper.onRefresh(new Runnable() {
-                @Override
-                public void run() {
-                    recyclerViewAdapter.notifyDataSetChanged();
-                }
-            });
-        } catch (OwnException e) {
-            throw new RuntimeException("Key store wrapper failure", e);
-        }
+        onChange = new AsyncKeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final String alias) {
+                recyclerViewAdapter.notifyItemInserted(position);
+            }
+
+            @Override
+            public void onRemoved(final int position, final String alias) {
+                recyclerViewAdapter.notifyItemRemoved(position);
+            }
+        };
+
+        asyncKeyStoreWrapper.addChangeListener(onChange);
+
+        onLoad = new KeyMetadataCache.OnLoadListener() {
+            @Override
+            public void onLoaded(final int from, final int to) {
+                final int count = Math.min(to, recyclerViewAdapter.getItemCount()) - from;
+                if (count > 0) recyclerViewAdapter.notifyItemRangeChanged(from, count);
+            }
+        };
+
+        keyMetadataCache.addLoadListener(onLoad);
+
+        asyncKeyStoreWrapper.load(new AsyncKeyStoreWrapper.Callback<Void>() {
+            @Override
+            public void onSuccess(final Void result) {}
+
+            @Override
+            public void onFailure(final OwnException e) {
+                throw new RuntimeException("Key store wrapper failure", e);
+            }
+        });
 
         swipeRefreshLayout = getView().findViewById(R.id.swipeRefreshLayout);
         newKeyFab = getView().findViewById(R.id.newKeyFab);
@@ -78,13 +123,19 @@ public class KeyListFragment extends Fragment {
         swipeRefreshLayout.setOnRefreshListener(new SwipeRefreshLayout.OnRefreshListener() {
             @Override
             public void onRefresh() {
-                try {
-                    keyStoreWrapper.refresh();
-                } catch (OwnException e) {
-                    throw new RuntimeException("Key store wrapper failure", e);
-                }
-
-                swipeRefreshLayout.setRefreshing(false);
+                asyncKeyStoreWrapper.refresh(new AsyncKeyStoreWrapper.Callback<Void>() {
+                    @Override
+                    public void onSuccess(final Void result) {
+                        if (getView() == null) return; // Left before the result came
+
+                        swipeRefreshLayout.setRefreshing(false);
+                    }
+
+                    @Override
+                    public void onFailure(final OwnException e) {
+                        throw new RuntimeException("Key store wrapper failure", e);
+                    }
+                });
             }
         });
 
@@ -96,11 +147,23 @@ public class KeyListFragment extends Fragment {
         });
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        asyncKeyStoreWrapper.removeChangeListener(onChange);
+        keyMetadataCache.removeLoadListener(onLoad);
+    }
+
     public static class RecyclerViewAdapter extends RecyclerView.Adapter<RecyclerViewHolder> {
-        private KeyStoreWrapper keyStoreWrapper;
+        private final AsyncKeyStoreWrapper asyncKeyStoreWrapper;
+        private final KeyMetadataCache keyMetadataCache;
 
-        public RecyclerViewAdapter(final KeyStoreWrapper keyStoreWrapper) {
-            this.keyStoreWrapper = keyStoreWrapper;
+        public RecyclerViewAdapter(
+                final AsyncKeyStoreWrapper asyncKeyStoreWrapper,
+                final KeyMetadataCache keyMetadataCache)
+        {
+            this.asyncKeyStoreWrapper = asyncKeyStoreWrapper;
+            this.keyMetadataCache = keyMetadataCache;
         }
 
         @Override
@@ -117,15 +180,16 @@ public class KeyListFragment extends Fragment {
                 final RecyclerViewHolder recyclerViewHolder,
                 final int position)
         {
-            final KeyWrapper keyWrapper = keyStoreWrapper.getByPosition(position);
-            final String alias = keyWrapper.getAlias();
+            final String alias = asyncKeyStoreWrapper.getAlias(position);
 
             recyclerViewHolder.keyNameTextView.setText(alias);
 
-            try {
-                recyclerViewHolder.keyInfoTextView.setText(keyWrapper.getInfo());
-            } catch (OwnException e) {
-                // Do nothing.
+            // Rows are bound again when the metadata page arrives.
+            final KeyMetadata keyMetadata = keyMetadataCache.get(position);
+            if (keyMetadata == null) {
+                recyclerViewHolder.keyInfoTextView.setText(R.string.key_info);
+            } else {
+                recyclerViewHolder.keyInfoTextView.setText(info(keyMetadata));
             }
 
             recyclerViewHolder.itemView.setOnClickListener(new View.OnClickListener() {
@@ -140,7 +204,13 @@ public class KeyListFragment extends Fragment {
 
         @Override
         public int getItemCount() {
-            return keyStoreWrapper.getCount();
+            return asyncKeyStoreWrapper.getCount();
+        }
+
+        private static String info(final KeyMetadata keyMetadata) {
+            final String info = keyMetadata.getAlgorithm() + " " + keyMetadata.getKeySize();
+
+            return keyMetadata.isHardwareBacked() ? info + ", hardware-backed" : info;
         }
     }
 
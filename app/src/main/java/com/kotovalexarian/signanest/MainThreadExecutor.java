@@ -0,0 +1,15 @@
+package com.kotovalexarian.signanest;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+public final class MainThreadExecutor implements Executor {
+    private final Handler handler = new Handler(Looper.getMainLooper());
+
+    @Override
+    public void execute(final Runnable runnable) {
+        handler.post(runnable);
+    }
+}
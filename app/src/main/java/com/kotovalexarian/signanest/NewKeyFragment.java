@@ -7,15 +7,19 @@ import android.view.View;
 import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
+import android.widget.RadioGroup;
 
 import androidx.fragment.app.Fragment;
 import androidx.navigation.Navigation;
 
-import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
 import com.kotovalexarian.signanest.key_store.OwnException;
 
 public class NewKeyFragment extends Fragment {
     private Button createKeyButton;
+    private AsyncKeyStoreWrapper asyncKeyStoreWrapper;
 
     public static NewKeyFragment newInstance() {
         final NewKeyFragment fragment = new NewKeyFragment();
@@ -27,6 +31,10 @@ public class NewKeyFragment extends Fragment {
     @Override
     public void onCreate(final Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
+
+        asyncKeyStoreWrapper =
+                ((SignanestApplication)requireActivity().getApplication())
+                        .getAsyncKeyStoreWrapper();
     }
 
     @Override
@@ -43,22 +51,42 @@ public class NewKeyFragment extends Fragment {
         createKeyButton = getView().findViewById(R.id.createKeyButton);
         createKeyButton.setOnClickListener(new View.OnClickListener() {
             @Override
-            public void onClick(View view) {
-                try {
-                    final EditText keyNameEditText = getView().findViewById(R.id.keyNameEditText);
-                    final KeyStoreWrapper keyStoreWrapper = new KeyStoreWrapper();
-                    final String keyName = keyNameEditText.getText().toString();
-                    keyStoreWrapper.create(keyName);
-                    final Bundle bundle = new Bundle();
-                    bundle.putString(KeyFragment.ARG_ALIAS, keyName);
-                    Navigation.findNavController(view).navigate(R.id.keyCreatedAction, bundle);
-                } catch (OwnException e) {
-                    new AlertDialog.Builder(view.getContext())
-                            .setTitle("Error!")
-                            .setMessage("Can not create key due to error.")
-                            .create()
-                            .show();
-                }
+            public void onClick(final View view) {
+                final EditText keyNameEditText = getView().findViewById(R.id.keyNameEditText);
+                final String keyName = keyNameEditText.getText().toString();
+                final RadioGroup keyAlgorithmRadioGroup =
+                        getView().findViewById(R.id.keyAlgorithmRadioGroup);
+                final KeyAlgorithm keyAlgorithm =
+                        keyAlgorithmRadioGroup.getCheckedRadioButtonId() == R.id.ecRadioButton
+                                ? KeyAlgorithm.EC
+                                : KeyAlgorithm.RSA;
+
+                // Key generation may take seconds, so keep it from being started twice.
+                createKeyButton.setEnabled(false);
+
+                asyncKeyStoreWrapper.create(keyName, keyAlgorithm, new AsyncKeyStoreWrapper.Callback<KeyWrapper>() {
+                    @Override
+                    public void onSuccess(final KeyWrapper keyWrapper) {
+                        if (getView() == null) return; // Left while the key was created
+
+                        final Bundle bundle = new Bundle();
+                        bundle.putString(KeyFragment.ARG_ALIAS, keyName);
+                        Navigation.findNavController(view).navigate(R.id.keyCreatedAction, bundle);
+                    }
+
+                    @Override
+                    public void onFailure(final OwnException e) {
+                        if (getView() == null) return;
+
+                        createKeyButton.setEnabled(true);
+
+                        new AlertDialog.Builder(view.getContext())
+                                .setTitle("Error!")
+                                .setMessage("Can not create key due to error.")
+                                .create()
+                                .show();
+                    }
+                });
             }
         });
     }
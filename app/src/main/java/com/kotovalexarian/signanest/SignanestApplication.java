@@ -0,0 +1,52 @@
+package com.kotovalexarian.signanest;
+
+import android.app.Application;
+
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyIndex;
+import com.kotovalexarian.signanest.key_store.KeyMetadataCache;
+import com.kotovalexarian.signanest.key_store.KeyPool;
+import com.kotovalexarian.signanest.key_store.OwnException;
+
+import java.io.File;
+
+public class SignanestApplication extends Application {
+    private static final int METADATA_PAGE_SIZE = 50;
+    private static final int KEY_POOL_SIZE = 2;
+
+    private KeyPool keyPool;
+    private AsyncKeyStoreWrapper asyncKeyStoreWrapper;
+    private KeyMetadataCache keyMetadataCache;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        try {
+            keyPool = new KeyPool(
+                    new File(getFilesDir(), "key_pool.properties"),
+                    KeyAlgorithm.RSA,
+                    KEY_POOL_SIZE,
+                    KeyPool.RefillPolicy.ON_CLAIM);
+        } catch (OwnException e) {
+            keyPool = null; // Keys are generated on demand.
+        }
+
+        // Read on the key store thread before the key store is loaded, so the
+        // keys of the last run are shown as soon as possible.
+        final KeyIndex keyIndex = new KeyIndex(new File(getFilesDir(), "key_index.bin"));
+
+        asyncKeyStoreWrapper =
+                new AsyncKeyStoreWrapper(new MainThreadExecutor(), keyPool, keyIndex);
+        keyMetadataCache = new KeyMetadataCache(asyncKeyStoreWrapper, METADATA_PAGE_SIZE);
+
+        if (keyPool != null) asyncKeyStoreWrapper.refillKeyPool();
+    }
+
+    public KeyPool getKeyPool() { return keyPool; }
+
+    public AsyncKeyStoreWrapper getAsyncKeyStoreWrapper() { return asyncKeyStoreWrapper; }
+
+    public KeyMetadataCache getKeyMetadataCache() { return keyMetadataCache; }
+}
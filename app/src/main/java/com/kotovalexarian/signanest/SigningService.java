@@ -0,0 +1,133 @@
+package com.kotovalexarian.signanest;
+
+import android.app.Service;
+import android.content.Intent;
+import android.content.pm.PackageManager;
+import android.net.Credentials;
+import android.net.LocalServerSocket;
+import android.net.LocalSocket;
+import android.os.Binder;
+import android.os.IBinder;
+
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SigningServer;
+
+import java.io.IOException;
+
+// Lets other apps sign, verify and decrypt with the keys of this app, see
+// SigningServer for the protocol. A client binds to the service to keep
+// it running, then connects to SOCKET_NAME in the abstract namespace.
+// Both the binding and every connection need PERMISSION, which is only
+// granted to apps signed with the same certificate.
+public class SigningService extends Service {
+    public static final String SOCKET_NAME = "com.kotovalexarian.signanest.signing";
+    public static final String PERMISSION = "com.kotovalexarian.signanest.permission.SIGN";
+
+    private SigningServer signingServer;
+    private LocalServerSocket serverSocket;
+
+    private boolean destroyed = false;
+
+    @Override
+    public void onCreate() {
+        super.onCreate();
+
+        final SignanestApplication application = (SignanestApplication)getApplication();
+
+        // The wrapper of the application is shared rather than a second one
+        // created, as that would load the key store here on the main thread
+        // and refresh the key pool behind the back of the first one.
+        application.getAsyncKeyStoreWrapper().share(
+                new AsyncKeyStoreWrapper.Callback<KeyStoreWrapper>() {
+                    @Override
+                    public void onSuccess(final KeyStoreWrapper keyStoreWrapper) {
+                        if (!destroyed) start(keyStoreWrapper);
+                    }
+
+                    @Override
+                    public void onFailure(final OwnException e) {
+                        stopSelf();
+                    }
+                });
+    }
+
+    private void start(final KeyStoreWrapper keyStoreWrapper) {
+        try {
+            serverSocket = new LocalServerSocket(SOCKET_NAME);
+        } catch (IOException e) {
+            stopSelf();
+            return;
+        }
+
+        signingServer = new SigningServer(keyStoreWrapper);
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                accept();
+            }
+        }, "SigningService").start();
+    }
+
+    @Override
+    public IBinder onBind(final Intent intent) {
+        return new Binder();
+    }
+
+    @Override
+    public void onDestroy() {
+        super.onDestroy();
+
+        destroyed = true;
+
+        if (serverSocket != null) {
+            try {
+                serverSocket.close();
+            } catch (IOException e) {
+                // Nothing to do when stopping.
+            }
+        }
+
+        if (signingServer != null) signingServer.close();
+    }
+
+    private void accept() {
+        while (true) {
+            final LocalSocket socket;
+
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                return; // Closed in onDestroy
+            }
+
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(socket);
+                }
+            }).start();
+        }
+    }
+
+    private void serve(final LocalSocket socket) {
+        try {
+            final Credentials credentials = socket.getPeerCredentials();
+
+            if (checkPermission(PERMISSION, credentials.getPid(), credentials.getUid())
+                    != PackageManager.PERMISSION_GRANTED) return;
+
+            signingServer.serve(socket.getInputStream(), socket.getOutputStream());
+        } catch (IOException e) {
+            // The client is gone or has sent garbage.
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already closed.
+            }
+        }
+    }
+}
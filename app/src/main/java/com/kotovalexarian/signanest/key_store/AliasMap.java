@@ -0,0 +1,106 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+// Persistent mapping of user-visible aliases to the key store entries
+// behind them, for keys that were claimed from a KeyPool.
+final class AliasMap {
+    private final File file;
+
+    private final HashMap<String, String> entryAliases = new HashMap<>();
+    private final HashMap<String, String> aliases = new HashMap<>();
+
+    AliasMap(final File file) throws OwnException {
+        this.file = file;
+
+        if (!file.exists()) return;
+
+        final Properties properties = new Properties();
+
+        try (InputStream input = new FileInputStream(file)) {
+            properties.load(input);
+        } catch (IOException e) {
+            throw new OwnException("Can not read alias map", e);
+        }
+
+        for (String alias : properties.stringPropertyNames()) {
+            put(alias, properties.getProperty(alias));
+        }
+    }
+
+    String getEntryAlias(final String alias) { return entryAliases.get(alias); }
+
+    String getAlias(final String entryAlias) { return aliases.get(entryAlias); }
+
+    // Saved before it takes effect. If the file can't be written, the entry
+    // stays unmapped and its key pool can still treat it as spare.
+    void add(final String alias, final String entryAlias) throws OwnException {
+        final HashMap<String, String> updated = new HashMap<>(entryAliases);
+        updated.put(alias, entryAlias);
+        save(updated);
+
+        put(alias, entryAlias);
+    }
+
+    void remove(final String alias) throws OwnException {
+        if (!entryAliases.containsKey(alias)) return;
+
+        final HashMap<String, String> updated = new HashMap<>(entryAliases);
+        updated.remove(alias);
+        save(updated);
+
+        aliases.remove(entryAliases.remove(alias));
+    }
+
+    // Forgets the mappings of entries that are no longer in the key store.
+    void retainEntries(final Set<String> entryAliases) throws OwnException {
+        final ArrayList<String> stale = new ArrayList<>();
+
+        for (Map.Entry<String, String> mapping : this.entryAliases.entrySet()) {
+            if (!entryAliases.contains(mapping.getValue())) stale.add(mapping.getKey());
+        }
+
+        if (stale.isEmpty()) return;
+
+        for (String alias : stale) {
+            aliases.remove(this.entryAliases.remove(alias));
+        }
+
+        save(this.entryAliases);
+    }
+
+    private void put(final String alias, final String entryAlias) {
+        entryAliases.put(alias, entryAlias);
+        aliases.put(entryAlias, alias);
+    }
+
+    // Written to a temporary file first, so a crash can't leave it half written.
+    private void save(final Map<String, String> entryAliases) throws OwnException {
+        final Properties properties = new Properties();
+        for (Map.Entry<String, String> mapping : entryAliases.entrySet()) {
+            properties.setProperty(mapping.getKey(), mapping.getValue());
+        }
+
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+            properties.store(output, null);
+            // Synced before the rename, or a power loss could leave the
+            // name pointing at data that never reached the disk.
+            output.getFD().sync();
+        } catch (IOException e) {
+            throw new OwnException("Can not write alias map", e);
+        }
+
+        if (!temporaryFile.renameTo(file)) throw new OwnException("Can not write alias map");
+    }
+}
@@ -0,0 +1,140 @@
+package com.kotovalexarian.signanest.key_store;
+
+import android.security.keystore.KeyGenParameterSpec;
+import android.security.keystore.KeyInfo;
+import android.security.keystore.KeyProperties;
+
+import java.io.IOException;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.PrivateKey;
+import java.security.cert.CertificateException;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.InvalidKeySpecException;
+
+public final class AndroidKeyStoreProvider implements KeyStoreProvider {
+    private static final String PROVIDER = "AndroidKeyStore";
+
+    @Override
+    public KeyStore loadKeyStore() throws OwnException {
+        try {
+            final KeyStore keyStore = KeyStore.getInstance(PROVIDER);
+            keyStore.load(null);
+            return keyStore;
+        } catch (KeyStoreException | CertificateException | IOException | NoSuchAlgorithmException e) {
+            throw new OwnException("Can not initialize key store", e);
+        }
+    }
+
+    @Override
+    public void generateKeyPair(
+            final KeyStore keyStore,
+            final String entryAlias,
+            final KeyAlgorithm keyAlgorithm
+    )
+            throws OwnException
+    {
+        try {
+            KeyGenParameterSpec keyGenParameterSpec =
+                    this.keyGenParameterSpec(entryAlias, keyAlgorithm);
+
+            KeyPairGenerator keyPairGenerator =
+                    KeyPairGenerator.getInstance(keyAlgorithm.getName(), PROVIDER);
+            keyPairGenerator.initialize(keyGenParameterSpec);
+
+            KeyPair keyPair = keyPairGenerator.generateKeyPair();
+        } catch (NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
+            throw new OwnException("Can not generate key", e);
+        }
+    }
+
+    @Override
+    public KeyMetadata getMetadata(
+            final KeyStore keyStore,
+            final String alias,
+            final String entryAlias,
+            final PrivateKey privateKey
+    )
+            throws OwnException
+    {
+        try {
+            final KeyFactory keyFactory =
+                    KeyFactory.getInstance(privateKey.getAlgorithm(), keyStore.getProvider());
+            final KeyInfo keyInfo = keyFactory.getKeySpec(privateKey, KeyInfo.class);
+
+            return new KeyMetadata(
+                    alias,
+                    privateKey.getAlgorithm(),
+                    keyInfo.getKeySize(),
+                    keyInfo.getPurposes(),
+                    keyStore.getCreationDate(entryAlias),
+                    keyInfo.isInsideSecureHardware());
+        } catch (KeyStoreException e) {
+            throw new OwnException("Key store failure", e);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        } catch (InvalidKeySpecException e) {
+            throw new OwnException("Invalid key spec", e);
+        }
+    }
+
+    private KeyGenParameterSpec keyGenParameterSpec(
+            final String alias,
+            final KeyAlgorithm keyAlgorithm
+    ) {
+        if (keyAlgorithm == KeyAlgorithm.EC) {
+            return new KeyGenParameterSpec.Builder(
+                    alias,
+                    KeyProperties.PURPOSE_SIGN |
+                            KeyProperties.PURPOSE_VERIFY)
+                    .setAlgorithmParameterSpec(new ECGenParameterSpec("secp256r1"))
+                    .setAttestationChallenge(null)
+                    .setDigests(
+                            KeyProperties.DIGEST_SHA256,
+                            KeyProperties.DIGEST_SHA384,
+                            KeyProperties.DIGEST_SHA512)
+                    .setIsStrongBoxBacked(false) // Because it isn't available
+                    .setKeySize(keyAlgorithm.getKeySize())
+                    .setUnlockedDeviceRequired(false)
+                    .setUserAuthenticationRequired(false)
+                    .setUserConfirmationRequired(false)
+                    .setUserPresenceRequired(false)
+                    .build();
+        }
+
+        return new KeyGenParameterSpec.Builder(
+                alias,
+                KeyProperties.PURPOSE_ENCRYPT |
+                        KeyProperties.PURPOSE_DECRYPT |
+                        KeyProperties.PURPOSE_SIGN |
+                        KeyProperties.PURPOSE_VERIFY |
+                        KeyProperties.PURPOSE_WRAP_KEY)
+                .setAttestationChallenge(null)
+                .setDigests(
+                        KeyProperties.DIGEST_SHA224,
+                        KeyProperties.DIGEST_SHA256,
+                        KeyProperties.DIGEST_SHA384,
+                        KeyProperties.DIGEST_SHA512)
+                .setEncryptionPaddings(
+                        KeyProperties.ENCRYPTION_PADDING_RSA_OAEP,
+                        KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1)
+                .setIsStrongBoxBacked(false) // Because it isn't available
+                .setKeySize(keyAlgorithm.getKeySize())
+                .setRandomizedEncryptionRequired(true)
+                .setSignaturePaddings(
+                        KeyProperties.SIGNATURE_PADDING_RSA_PKCS1,
+                        KeyProperties.SIGNATURE_PADDING_RSA_PSS)
+                .setUnlockedDeviceRequired(false)
+                .setUserAuthenticationRequired(false)
+                .setUserConfirmationRequired(false)
+                .setUserPresenceRequired(false)
+                .build();
+
+    }
+}
@@ -0,0 +1,453 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Runs every key store operation on a single background thread and
+// delivers results and change events through the callback executor,
+// usually the main thread. Every submitted operation gets exactly one
+// callback, also when it fails with an unchecked exception. The wrapped
+// KeyStoreWrapper is created lazily on the background thread. As it is
+// thread safe, it can be shared with code that needs to call it directly,
+// so that the key store and the key pool have a single wrapper.
+//
+// A copy of the key list is kept on the callback thread, so listeners
+// and adapters there can read it at any time without a key store scan.
+// Listener registration and the list getters are callback thread only.
+// With a KeyIndex the copy starts from the aliases saved there, and is
+// reconciled with the key store once it has been loaded. The index is read
+// on the background thread too, before the key store is loaded, and is
+// brought up to date there after every refresh.
+public final class AsyncKeyStoreWrapper {
+    private static final int INDEX_CHUNK_SIZE = 32;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor();
+    private final Executor callbackExecutor;
+    private final KeyStoreProvider keyStoreProvider;
+    private final KeyPool keyPool;
+    private final KeyIndex keyIndex;
+
+    private KeyStoreWrapper keyStoreWrapper = null;
+
+    private final AtomicBoolean indexUpdatePending = new AtomicBoolean(false);
+
+    private final ArrayList<String> aliases = new ArrayList<>();
+    private final ArrayList<OnChangeListener> changeListeners = new ArrayList<>();
+
+    public AsyncKeyStoreWrapper(final Executor callbackExecutor) {
+        this(callbackExecutor, null);
+    }
+
+    public AsyncKeyStoreWrapper(final Executor callbackExecutor, final KeyPool keyPool) {
+        this(callbackExecutor, keyPool, null);
+    }
+
+    public AsyncKeyStoreWrapper(
+            final Executor callbackExecutor,
+            final KeyPool keyPool,
+            final KeyIndex keyIndex
+    ) {
+        this(callbackExecutor, new AndroidKeyStoreProvider(), keyPool, keyIndex);
+    }
+
+    public AsyncKeyStoreWrapper(
+            final Executor callbackExecutor,
+            final KeyStoreProvider keyStoreProvider,
+            final KeyPool keyPool
+    ) {
+        this(callbackExecutor, keyStoreProvider, keyPool, null);
+    }
+
+    public AsyncKeyStoreWrapper(
+            final Executor callbackExecutor,
+            final KeyStoreProvider keyStoreProvider,
+            final KeyPool keyPool,
+            final KeyIndex keyIndex
+    ) {
+        this.callbackExecutor = callbackExecutor;
+        this.keyStoreProvider = keyStoreProvider;
+        this.keyPool = keyPool;
+        this.keyIndex = keyIndex;
+
+        if (keyIndex == null) return;
+
+        readIndex(new Callback<List<KeyIndex.Entry>>() {
+            @Override
+            public void onSuccess(final List<KeyIndex.Entry> entries) {
+                final ArrayList<String> savedAliases = new ArrayList<>();
+
+                for (KeyIndex.Entry entry : entries) {
+                    savedAliases.add(entry.getMetadata().getAlias());
+                }
+
+                // The loaded key store is always reconciled later.
+                reconcile(savedAliases);
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {}
+        });
+    }
+
+    public void addChangeListener(final OnChangeListener listener) {
+        changeListeners.add(listener);
+    }
+
+    public void removeChangeListener(final OnChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    public KeyIndex getKeyIndex() { return keyIndex; }
+
+    public int getCount() { return aliases.size(); }
+
+    public String getAlias(final int position) throws IndexOutOfBoundsException {
+        return aliases.get(position);
+    }
+
+    // Delivers the saved entries without waiting for the key store. Entries
+    // of keys that are gone or were replaced are still there until they
+    // are reconciled. Requires a KeyIndex.
+    public void readIndex(final Callback<List<KeyIndex.Entry>> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final List<KeyIndex.Entry> entries = keyIndex.getEntries();
+
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        callback.onSuccess(entries);
+                    }
+                });
+            }
+        });
+    }
+
+    public <T> void submit(final Operation<T> operation, final Callback<T> callback) {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final T result = operation.run(keyStoreWrapper());
+
+                    callbackExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            callback.onSuccess(result);
+                        }
+                    });
+                } catch (OwnException e) {
+                    fail(callback, e);
+                } catch (RuntimeException e) {
+                    // Delivered as well, or the caller would wait forever.
+                    fail(callback, new OwnException("Unexpected failure", e));
+                }
+            }
+        });
+    }
+
+    private <T> void fail(final Callback<T> callback, final OwnException e) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onFailure(e);
+            }
+        });
+    }
+
+    public void load(final Callback<Void> callback) {
+        submit(new Operation<Void>() {
+            @Override
+            public Void run(final KeyStoreWrapper keyStoreWrapper) {
+                return null;
+            }
+        }, callback);
+    }
+
+    // Changes made through the shared wrapper reach the copy of the key list
+    // like any other change.
+    public void share(final Callback<KeyStoreWrapper> callback) {
+        submit(new Operation<KeyStoreWrapper>() {
+            @Override
+            public KeyStoreWrapper run(final KeyStoreWrapper keyStoreWrapper) {
+                return keyStoreWrapper;
+            }
+        }, callback);
+    }
+
+    public void refresh(final Callback<Void> callback) {
+        submit(new Operation<Void>() {
+            @Override
+            public Void run(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+                keyStoreWrapper.refresh();
+                return null;
+            }
+        }, callback);
+    }
+
+    public void create(
+            final String alias,
+            final KeyAlgorithm keyAlgorithm,
+            final Callback<KeyWrapper> callback
+    ) {
+        submit(new Operation<KeyWrapper>() {
+            @Override
+            public KeyWrapper run(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+                keyStoreWrapper.create(alias, keyAlgorithm);
+                return keyStoreWrapper.getByAlias(alias);
+            }
+        }, callback);
+
+        if (keyPool != null && keyPool.getRefillPolicy() == KeyPool.RefillPolicy.ON_CLAIM) {
+            refillKeyPool();
+        }
+    }
+
+    public void createAll(
+            final Collection<String> aliases,
+            final KeyAlgorithm keyAlgorithm,
+            final Callback<Void> callback
+    ) {
+        final ArrayList<String> aliasList = new ArrayList<>(aliases);
+
+        submit(new Operation<Void>() {
+            @Override
+            public Void run(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+                keyStoreWrapper.createAll(
+                        aliasList,
+                        keyAlgorithm,
+                        Runtime.getRuntime().availableProcessors());
+                return null;
+            }
+        }, callback);
+
+        if (keyPool != null && keyPool.getRefillPolicy() == KeyPool.RefillPolicy.ON_CLAIM) {
+            refillKeyPool();
+        }
+    }
+
+    // Tops up the key pool one key per task, so that user operations queued
+    // in the meantime don't wait for the whole refill.
+    public void refillKeyPool() {
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final KeyStoreWrapper keyStoreWrapper = keyStoreWrapper();
+                    if (!keyStoreWrapper.needsKeyPoolRefill()) return;
+
+                    keyStoreWrapper.refillKeyPool();
+                } catch (OwnException e) {
+                    return; // Keys are generated on demand until the next refill.
+                }
+
+                refillKeyPool();
+            }
+        });
+    }
+
+    public void delete(final String alias, final Callback<Void> callback) {
+        submit(new Operation<Void>() {
+            @Override
+            public Void run(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+                keyStoreWrapper.getByAlias(alias).delete();
+                return null;
+            }
+        }, callback);
+    }
+
+    public void deleteAll(final Collection<String> aliases, final Callback<Void> callback) {
+        final ArrayList<String> aliasList = new ArrayList<>(aliases);
+
+        submit(new Operation<Void>() {
+            @Override
+            public Void run(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+                keyStoreWrapper.deleteAll(aliasList);
+                return null;
+            }
+        }, callback);
+    }
+
+    public void getInfo(final String alias, final Callback<String> callback) {
+        submit(new Operation<String>() {
+            @Override
+            public String run(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+                return keyStoreWrapper.getByAlias(alias).getInfo();
+            }
+        }, callback);
+    }
+
+    private KeyStoreWrapper keyStoreWrapper() throws OwnException {
+        if (keyStoreWrapper != null) return keyStoreWrapper;
+
+        final KeyStoreWrapper keyStoreWrapper = new KeyStoreWrapper(keyStoreProvider, keyPool);
+        this.keyStoreWrapper = keyStoreWrapper;
+
+        keyStoreWrapper.addChangeListener(new KeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final KeyWrapper keyWrapper) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        insert(position, keyWrapper.getAlias());
+                    }
+                });
+            }
+
+            @Override
+            public void onRemoved(final int position, final KeyWrapper keyWrapper) {
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        remove(position);
+                    }
+                });
+            }
+        });
+
+        // Events of later refreshes are queued after this one, so they
+        // apply to the reconciled list.
+        final List<String> loadedAliases = aliases(keyStoreWrapper);
+
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                reconcile(loadedAliases);
+            }
+        });
+
+        if (keyIndex != null) {
+            keyStoreWrapper.addRefreshListener(new Runnable() {
+                @Override
+                public void run() {
+                    scheduleIndexUpdate();
+                }
+            });
+            scheduleIndexUpdate();
+        }
+
+        return keyStoreWrapper;
+    }
+
+    // Runs on the background thread after every refresh, and coalesces
+    // refreshes that come while it is still queued.
+    private void scheduleIndexUpdate() {
+        if (!indexUpdatePending.compareAndSet(false, true)) return;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                indexUpdatePending.set(false);
+                updateIndex();
+            }
+        });
+    }
+
+    // Drops the keys that are gone and adds the ones the index doesn't have
+    // yet, so that every key is listed on the next cold start. Keys are read
+    // a chunk at a time, so that operations queued in the meantime don't
+    // wait for a first index of many keys. Entries of keys replaced under
+    // the same alias are fixed by KeyMetadataCache when they are shown.
+    private void updateIndex() {
+        final ArrayList<String> aliases = new ArrayList<>();
+        final ArrayList<KeyIndex.Entry> entries = new ArrayList<>();
+        boolean more = false;
+
+        for (KeyWrapper keyWrapper : keyStoreWrapper.getAll()) {
+            aliases.add(keyWrapper.getAlias());
+
+            if (keyIndex.get(keyWrapper.getAlias()) != null) continue;
+
+            if (entries.size() == INDEX_CHUNK_SIZE) {
+                more = true;
+                continue;
+            }
+
+            try {
+                entries.add(KeyIndex.entry(keyWrapper));
+            } catch (OwnException e) {
+                // Deleted meanwhile or unreadable, tried again on the next refresh.
+            }
+        }
+
+        try {
+            keyIndex.retainAliases(aliases);
+            keyIndex.putAll(entries);
+        } catch (OwnException e) {
+            // Written again on the next refresh.
+        }
+
+        if (more) scheduleIndexUpdate();
+    }
+
+    // Turns the list into the given one with the fewest events. Both are
+    // sorted, so one merge pass finds all the differences.
+    private void reconcile(final List<String> newAliases) {
+        int position = 0;
+        int index = 0;
+
+        while (position < aliases.size() || index < newAliases.size()) {
+            final int comparison;
+            if (index == newAliases.size()) {
+                comparison = -1;
+            } else if (position == aliases.size()) {
+                comparison = 1;
+            } else {
+                comparison = aliases.get(position).compareTo(newAliases.get(index));
+            }
+
+            if (comparison < 0) {
+                remove(position);
+            } else if (comparison > 0) {
+                insert(position++, newAliases.get(index++));
+            } else {
+                ++position;
+                ++index;
+            }
+        }
+    }
+
+    private void insert(final int position, final String alias) {
+        aliases.add(position, alias);
+        for (OnChangeListener listener : new ArrayList<>(changeListeners)) {
+            listener.onInserted(position, alias);
+        }
+    }
+
+    private void remove(final int position) {
+        final String alias = aliases.remove(position);
+        for (OnChangeListener listener : new ArrayList<>(changeListeners)) {
+            listener.onRemoved(position, alias);
+        }
+    }
+
+    private static List<String> aliases(final KeyStoreWrapper keyStoreWrapper) {
+        final ArrayList<String> result = new ArrayList<>();
+
+        for (KeyWrapper keyWrapper : keyStoreWrapper.getAll()) {
+            result.add(keyWrapper.getAlias());
+        }
+
+        return result;
+    }
+
+    public interface OnChangeListener {
+        void onInserted(int position, String alias);
+        void onRemoved(int position, String alias);
+    }
+
+    public interface Operation<T> {
+        T run(KeyStoreWrapper keyStoreWrapper) throws OwnException;
+    }
+
+    public interface Callback<T> {
+        void onSuccess(T result);
+        void onFailure(OwnException e);
+    }
+}
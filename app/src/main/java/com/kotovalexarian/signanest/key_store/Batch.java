@@ -0,0 +1,150 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+// Runs a task over count items split into one contiguous slice per thread.
+// The calling thread takes the first slice, the others go to one pool
+// shared by all batches, with a thread per core that stops when idle.
+// After a failure the slices that haven't started yet are skipped, but the
+// running ones are waited for, so nothing a batch does outlives the call.
+// Then the first failure is rethrown, with the others as suppressed.
+final class Batch {
+    private static final int POOL_SIZE = Runtime.getRuntime().availableProcessors();
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static final ThreadPoolExecutor executor = createExecutor();
+
+    private Batch() {}
+
+    static void run(
+            final int count,
+            final int parallelism,
+            final Task task
+    )
+            throws OwnException
+    {
+        final int threads = Math.max(1, Math.min(Math.min(parallelism, POOL_SIZE + 1), count));
+
+        // A batch started by a slice would wait for the pool it runs on.
+        if (threads == 1 || Thread.currentThread() instanceof PoolThread) {
+            task.run(0, count);
+            return;
+        }
+
+        final CountDownLatch done = new CountDownLatch(threads - 1);
+        final Failures failures = new Failures();
+
+        for (int thread = 1; thread < threads; ++thread) {
+            final int from = (int)((long)count * thread / threads);
+            final int to = (int)((long)count * (thread + 1) / threads);
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        runSlice(task, from, to, failures);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        runSlice(task, 0, (int)((long)count / threads), failures);
+
+        // Returning early would leave slices running behind the caller's
+        // back, so an interrupt only fails the batch and the wait goes on.
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+                failures.add(new OwnException("Batch interrupted", e));
+            }
+        }
+
+        if (interrupted) Thread.currentThread().interrupt();
+
+        failures.rethrow();
+    }
+
+    private static void runSlice(
+            final Task task,
+            final int from,
+            final int to,
+            final Failures failures
+    ) {
+        if (failures.isEmpty()) {
+            try {
+                task.run(from, to);
+            } catch (OwnException e) {
+                failures.add(e);
+            } catch (RuntimeException e) {
+                failures.add(e);
+            } catch (Error e) {
+                failures.add(e);
+            }
+        }
+    }
+
+    private static ThreadPoolExecutor createExecutor() {
+        final ThreadPoolExecutor result = new ThreadPoolExecutor(
+                POOL_SIZE,
+                POOL_SIZE,
+                KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new PoolThread(runnable);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+
+        result.allowCoreThreadTimeOut(true);
+
+        return result;
+    }
+
+    private static final class PoolThread extends Thread {
+        private PoolThread(final Runnable runnable) {
+            super(runnable, "Batch");
+        }
+    }
+
+    // The first failure, with the later ones added to it as suppressed.
+    private static final class Failures {
+        private volatile Throwable first = null;
+
+        private boolean isEmpty() { return first == null; }
+
+        private synchronized void add(final Throwable failure) {
+            if (first == null) {
+                first = failure;
+            } else {
+                first.addSuppressed(failure);
+            }
+        }
+
+        private void rethrow() throws OwnException {
+            final Throwable failure = first;
+
+            if (failure instanceof OwnException) throw (OwnException)failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException)failure;
+            if (failure instanceof Error) throw (Error)failure;
+        }
+    }
+
+    interface Task {
+        void run(int from, int to) throws OwnException;
+    }
+}
@@ -0,0 +1,55 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+// A fixed number of equally sized direct buffers, allocated on first use
+// and then reused. Callers take all the buffers they need at once, so two
+// callers can't each hold a part and wait for the rest of each other.
+final class BufferPool {
+    private final int bufferSize;
+    private final int capacity;
+
+    private final ArrayList<ByteBuffer> free = new ArrayList<>();
+    private int allocated = 0;
+
+    BufferPool(final int bufferSize, final int capacity) {
+        this.bufferSize = bufferSize;
+        this.capacity = capacity;
+    }
+
+    int getBufferSize() { return bufferSize; }
+
+    // Blocks until count buffers are available.
+    synchronized List<ByteBuffer> acquire(final int count) throws OwnException {
+        if (count > capacity) throw new OwnException("Buffer pool is too small");
+
+        try {
+            while (free.size() + capacity - allocated < count) wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OwnException("Interrupted", e);
+        }
+
+        final ArrayList<ByteBuffer> result = new ArrayList<>(count);
+
+        while (result.size() < count) {
+            if (free.isEmpty()) {
+                result.add(ByteBuffer.allocateDirect(bufferSize));
+                ++allocated;
+            } else {
+                final ByteBuffer buffer = free.remove(free.size() - 1);
+                buffer.clear();
+                result.add(buffer);
+            }
+        }
+
+        return result;
+    }
+
+    synchronized void release(final List<ByteBuffer> buffers) {
+        free.addAll(buffers);
+        notifyAll();
+    }
+}
@@ -0,0 +1,161 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Verifies many (text, signature) pairs against one key on a fork-join
+// pool. Slices are split in halves down to MIN_SLICE_SIZE items, and each
+// worker verifies with its own engine from EnginePool, initialized with
+// the software public key, so no locks or key store calls are involved.
+public final class BulkVerifier {
+    private static final int MIN_SLICE_SIZE = 64;
+
+    private static final Metrics.Timer VERIFY_TIMER = Metrics.timer("key.verifyBulk");
+    private static final Metrics.Counter ITEM_COUNTER = Metrics.counter("key.verifyBulk.items");
+
+    private final ForkJoinPool pool;
+
+    public BulkVerifier() {
+        this(SharedForkJoinPool.get());
+    }
+
+    public BulkVerifier(final ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    public int getParallelism() { return pool.getParallelism(); }
+
+    public Report verify(
+            final KeyWrapper keyWrapper,
+            final List<byte[]> texts,
+            final List<byte[]> signatures
+    )
+            throws OwnException
+    {
+        if (texts.size() != signatures.size()) {
+            throw new OwnException("Different number of texts and signatures");
+        }
+
+        final PublicKey publicKey = keyWrapper.getPublicKey();
+        final KeyAlgorithm keyAlgorithm = keyWrapper.getKeyAlgorithm();
+        final boolean[] results = new boolean[texts.size()];
+
+        final long start = System.nanoTime();
+
+        try {
+            pool.invoke(new Slice(keyAlgorithm, publicKey, texts, signatures, results,
+                    0, texts.size()));
+        } catch (WrappedException e) {
+            throw e.cause;
+        }
+
+        final long elapsedNanos = System.nanoTime() - start;
+        VERIFY_TIMER.record(elapsedNanos);
+        ITEM_COUNTER.add(results.length);
+
+        return new Report(results, elapsedNanos);
+    }
+
+    public static final class Report {
+        private final boolean[] results;
+        private final int passedCount;
+        private final long elapsedNanos;
+
+        private Report(final boolean[] results, final long elapsedNanos) {
+            int passedCount = 0;
+            for (boolean result : results) {
+                if (result) ++passedCount;
+            }
+
+            this.results = results;
+            this.passedCount = passedCount;
+            this.elapsedNanos = elapsedNanos;
+        }
+
+        public boolean[] getResults() { return results; }
+
+        public boolean isPassed(final int index) { return results[index]; }
+
+        public int getCount() { return results.length; }
+
+        public int getPassedCount() { return passedCount; }
+
+        public int getFailedCount() { return results.length - passedCount; }
+
+        public boolean isAllPassed() { return passedCount == results.length; }
+
+        public long getElapsedNanos() { return elapsedNanos; }
+
+        // Verified items per second.
+        public double getThroughput() {
+            if (elapsedNanos == 0) return 0;
+
+            return results.length * 1e9 / elapsedNanos;
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Slice extends RecursiveAction {
+        private final KeyAlgorithm keyAlgorithm;
+        private final PublicKey publicKey;
+        private final List<byte[]> texts;
+        private final List<byte[]> signatures;
+        private final boolean[] results;
+        private final int from;
+        private final int to;
+
+        private Slice(
+                final KeyAlgorithm keyAlgorithm,
+                final PublicKey publicKey,
+                final List<byte[]> texts,
+                final List<byte[]> signatures,
+                final boolean[] results,
+                final int from,
+                final int to
+        ) {
+            this.keyAlgorithm = keyAlgorithm;
+            this.publicKey = publicKey;
+            this.texts = texts;
+            this.signatures = signatures;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MIN_SLICE_SIZE) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                        new Slice(keyAlgorithm, publicKey, texts, signatures, results,
+                                from, middle),
+                        new Slice(keyAlgorithm, publicKey, texts, signatures, results,
+                                middle, to));
+                return;
+            }
+
+            try {
+                verify();
+            } catch (OwnException e) {
+                throw new WrappedException(e);
+            }
+        }
+
+        private void verify() throws OwnException {
+            KeyWrapper.verifyRange(keyAlgorithm, publicKey, texts, signatures, results, from, to);
+        }
+    }
+
+    // Carries checked exceptions out of compute(), which can't throw them.
+    @SuppressWarnings("serial")
+    private static final class WrappedException extends RuntimeException {
+        private final OwnException cause;
+
+        private WrappedException(final OwnException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.security.InvalidAlgorithmParameterException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.AlgorithmParameterSpec;
+import java.util.HashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.NoSuchPaddingException;
+
+// Keeps one Signature and Cipher per algorithm and mode for each thread.
+// An engine is handed out again only after recycle() confirms that the
+// previous operation on it has completed, so a failed operation never
+// leaks its state into the next one. Re-initialization is skipped when
+// the same key object is used in the same mode.
+final class EnginePool {
+    private static final Metrics.Timer INIT_TIMER = Metrics.timer("phase.engine.init");
+    private static final Metrics.Counter REUSED_COUNTER = Metrics.counter("engine.reused");
+    private static final Metrics.Counter REINITIALIZED_COUNTER =
+            Metrics.counter("engine.reinitialized");
+    private static final Metrics.Counter CREATED_COUNTER = Metrics.counter("engine.created");
+
+    private static final ThreadLocal<HashMap<String, Slot>> slots =
+            new ThreadLocal<HashMap<String, Slot>>() {
+                @Override
+                protected HashMap<String, Slot> initialValue() {
+                    return new HashMap<>();
+                }
+            };
+
+    private EnginePool() {}
+
+    static Signature signer(final String algorithm, final PrivateKey privateKey)
+            throws OwnException
+    {
+        final Slot slot = slot("sign:" + algorithm);
+
+        try {
+            if (slot.isReusable(privateKey)) {
+                REUSED_COUNTER.increment();
+                return (Signature)slot.acquire(privateKey);
+            }
+
+            final long start = INIT_TIMER.start();
+
+            try {
+                if (slot.engine != null && slot.clean) {
+                    final Signature signature = (Signature)slot.engine;
+                    signature.initSign(privateKey);
+                    REINITIALIZED_COUNTER.increment();
+                    INIT_TIMER.stop(start);
+                    return (Signature)slot.acquire(privateKey);
+                }
+            } catch (InvalidKeyException e) {
+                // Provider was already bound to another kind of key.
+            }
+
+            final Signature signature = Signature.getInstance(algorithm);
+            signature.initSign(privateKey);
+            slot.engine = signature;
+            CREATED_COUNTER.increment();
+            INIT_TIMER.stop(start);
+            return (Signature)slot.acquire(privateKey);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        } catch (InvalidKeyException e) {
+            throw new OwnException("Invalid key", e);
+        }
+    }
+
+    static Signature verifier(final String algorithm, final PublicKey publicKey)
+            throws OwnException
+    {
+        final Slot slot = slot("verify:" + algorithm);
+
+        try {
+            if (slot.isReusable(publicKey)) {
+                REUSED_COUNTER.increment();
+                return (Signature)slot.acquire(publicKey);
+            }
+
+            final long start = INIT_TIMER.start();
+
+            try {
+                if (slot.engine != null && slot.clean) {
+                    final Signature signature = (Signature)slot.engine;
+                    signature.initVerify(publicKey);
+                    REINITIALIZED_COUNTER.increment();
+                    INIT_TIMER.stop(start);
+                    return (Signature)slot.acquire(publicKey);
+                }
+            } catch (InvalidKeyException e) {
+                // Provider was already bound to another kind of key.
+            }
+
+            final Signature signature = Signature.getInstance(algorithm);
+            signature.initVerify(publicKey);
+            slot.engine = signature;
+            CREATED_COUNTER.increment();
+            INIT_TIMER.stop(start);
+            return (Signature)slot.acquire(publicKey);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        } catch (InvalidKeyException e) {
+            throw new OwnException("Invalid key", e);
+        }
+    }
+
+    // Parameters such as IVs must never be reused, so passing them always
+    // re-initializes the cipher. Without parameters an engine initialized
+    // with the same key and mode is handed out as is.
+    static Cipher cipher(
+            final String transformation,
+            final int mode,
+            final Key key,
+            final AlgorithmParameterSpec params
+    )
+            throws OwnException
+    {
+        final Slot slot = slot(mode + ":" + transformation);
+
+        try {
+            if (params == null && slot.isReusable(key)) {
+                REUSED_COUNTER.increment();
+                return (Cipher)slot.acquire(key);
+            }
+
+            final long start = INIT_TIMER.start();
+
+            try {
+                if (slot.engine != null && slot.clean) {
+                    final Cipher cipher = (Cipher)slot.engine;
+                    cipher.init(mode, key, params);
+                    REINITIALIZED_COUNTER.increment();
+                    INIT_TIMER.stop(start);
+                    return (Cipher)slot.acquire(params == null ? key : null);
+                }
+            } catch (InvalidKeyException e) {
+                // Provider was already bound to another kind of key.
+            }
+
+            final Cipher cipher = Cipher.getInstance(transformation);
+            cipher.init(mode, key, params);
+            slot.engine = cipher;
+            CREATED_COUNTER.increment();
+            INIT_TIMER.stop(start);
+            return (Cipher)slot.acquire(params == null ? key : null);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        } catch (NoSuchPaddingException e) {
+            throw new OwnException("No such padding", e);
+        } catch (InvalidKeyException e) {
+            throw new OwnException("Invalid key", e);
+        } catch (InvalidAlgorithmParameterException e) {
+            throw new OwnException("Invalid algorithm parameters", e);
+        }
+    }
+
+    // Must be called only after sign(), verify() or doFinal() completed
+    // normally, which resets the engine to its initialized state.
+    static void recycle(final Object engine) {
+        for (Slot slot : slots.get().values()) {
+            if (slot.engine == engine) {
+                slot.clean = true;
+                return;
+            }
+        }
+    }
+
+    private static Slot slot(final String name) {
+        final HashMap<String, Slot> map = slots.get();
+
+        Slot slot = map.get(name);
+        if (slot == null) {
+            slot = new Slot();
+            map.put(name, slot);
+        }
+
+        return slot;
+    }
+
+    private static final class Slot {
+        private Object engine = null;
+        private Key key = null;
+        private boolean clean = false;
+
+        private boolean isReusable(final Key key) {
+            return engine != null && clean && this.key == key;
+        }
+
+        private Object acquire(final Key key) {
+            this.key = key;
+            this.clean = false;
+            return engine;
+        }
+    }
+}
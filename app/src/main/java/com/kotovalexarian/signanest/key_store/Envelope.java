@@ -0,0 +1,194 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.nio.BufferOverflowException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+// A signature or cipher text together with what is needed to use it: the
+// fingerprint of the key and the scheme, which fixes the algorithm,
+// padding and digest. Compared to Base64 strings it is 25% smaller for the
+// payload alone, and verify() and decrypt() find the key by themselves.
+//
+// Format: magic (2 bytes), version, scheme, key fingerprint, payload
+// length (2 bytes), payload. Parsing doesn't copy, the payload is a view
+// of the parsed buffer.
+public final class Envelope {
+    public static final int HEADER_SIZE = 2 + 1 + 1 + KeyWrapper.FINGERPRINT_SIZE + 2;
+
+    private static final short MAGIC = 0x534E; // "SN"
+    private static final byte VERSION = 1;
+
+    public enum Scheme {
+        SHA256_WITH_RSA(1, KeyAlgorithm.RSA, true),
+        SHA256_WITH_ECDSA(2, KeyAlgorithm.EC, true),
+        RSA_PKCS1(3, KeyAlgorithm.RSA, false);
+
+        private final byte id;
+        private final KeyAlgorithm keyAlgorithm;
+        private final boolean signature;
+
+        Scheme(final int id, final KeyAlgorithm keyAlgorithm, final boolean signature) {
+            this.id = (byte)id;
+            this.keyAlgorithm = keyAlgorithm;
+            this.signature = signature;
+        }
+
+        public KeyAlgorithm getKeyAlgorithm() { return keyAlgorithm; }
+
+        public boolean isSignature() { return signature; }
+
+        private static Scheme of(final byte id) throws OwnException {
+            for (Scheme scheme : values()) {
+                if (scheme.id == id) return scheme;
+            }
+
+            throw new OwnException("Unsupported scheme");
+        }
+
+        private static Scheme of(final KeyAlgorithm keyAlgorithm, final boolean signature)
+                throws OwnException
+        {
+            for (Scheme scheme : values()) {
+                if (scheme.keyAlgorithm == keyAlgorithm && scheme.signature == signature) {
+                    return scheme;
+                }
+            }
+
+            throw new OwnException("Unsupported scheme");
+        }
+    }
+
+    private final Scheme scheme;
+    private final byte[] fingerprint;
+    private final ByteBuffer payload;
+
+    private Envelope(final Scheme scheme, final byte[] fingerprint, final ByteBuffer payload) {
+        this.scheme = scheme;
+        this.fingerprint = fingerprint;
+        this.payload = payload;
+    }
+
+    public static Envelope sign(final KeyWrapper keyWrapper, final ByteBuffer text)
+            throws OwnException
+    {
+        final Scheme scheme = Scheme.of(keyWrapper.getKeyAlgorithm(), true);
+
+        return new Envelope(
+                scheme,
+                keyWrapper.getFingerprint(),
+                ByteBuffer.wrap(keyWrapper.sign(text)));
+    }
+
+    public static Envelope encrypt(final KeyWrapper keyWrapper, final byte[] plainText)
+            throws OwnException
+    {
+        final Scheme scheme = Scheme.of(keyWrapper.getKeyAlgorithm(), false);
+
+        return new Envelope(
+                scheme,
+                keyWrapper.getFingerprint(),
+                ByteBuffer.wrap(keyWrapper.encrypt(plainText)));
+    }
+
+    // Reads one envelope at the position of the buffer and moves past it.
+    // Nothing is consumed when it fails.
+    public static Envelope parse(final ByteBuffer buffer) throws OwnException {
+        final ByteBuffer input = buffer.duplicate();
+
+        try {
+            if (input.getShort() != MAGIC) throw new OwnException("Not an envelope");
+            if (input.get() != VERSION) throw new OwnException("Unsupported version");
+
+            final Scheme scheme = Scheme.of(input.get());
+
+            final byte[] fingerprint = new byte[KeyWrapper.FINGERPRINT_SIZE];
+            input.get(fingerprint);
+
+            final int length = input.getShort() & 0xffff;
+            if (length == 0) throw new OwnException("Empty payload");
+            if (length > input.remaining()) throw new OwnException("Truncated envelope");
+
+            final ByteBuffer payload = input.slice();
+            payload.limit(length);
+
+            buffer.position(input.position() + length);
+
+            return new Envelope(scheme, fingerprint, payload.asReadOnlyBuffer());
+        } catch (BufferUnderflowException e) {
+            throw new OwnException("Truncated envelope", e);
+        }
+    }
+
+    public int getSize() { return HEADER_SIZE + payload.remaining(); }
+
+    // Writes at the position of the buffer, which must have getSize()
+    // bytes left.
+    public void writeTo(final ByteBuffer buffer) throws OwnException {
+        if (buffer.remaining() < getSize()) throw new OwnException("Short buffer");
+
+        try {
+            buffer.putShort(MAGIC);
+            buffer.put(VERSION);
+            buffer.put(scheme.id);
+            buffer.put(fingerprint);
+            buffer.putShort((short)payload.remaining());
+            buffer.put(payload.duplicate());
+        } catch (BufferOverflowException e) {
+            throw new OwnException("Short buffer", e);
+        }
+    }
+
+    public byte[] toByteArray() throws OwnException {
+        final ByteBuffer buffer = ByteBuffer.allocate(getSize());
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    public Scheme getScheme() { return scheme; }
+
+    public byte[] getFingerprint() { return fingerprint.clone(); }
+
+    // Read-only view, parsed envelopes share it with the parsed buffer.
+    public ByteBuffer getPayload() { return payload.duplicate(); }
+
+    public KeyWrapper findKey(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+        return keyStoreWrapper.getByFingerprint(fingerprint);
+    }
+
+    public boolean verify(final KeyStoreWrapper keyStoreWrapper, final ByteBuffer text)
+            throws OwnException
+    {
+        return verify(findKey(keyStoreWrapper), text);
+    }
+
+    public boolean verify(final KeyWrapper keyWrapper, final ByteBuffer text)
+            throws OwnException
+    {
+        if (!scheme.signature) throw new OwnException("Not a signature");
+        if (!keyWrapper.hasFingerprint(fingerprint)) return false;
+        if (keyWrapper.getKeyAlgorithm() != scheme.keyAlgorithm) return false;
+
+        return keyWrapper.verify(text, payload.duplicate());
+    }
+
+    public byte[] decrypt(final KeyStoreWrapper keyStoreWrapper) throws OwnException {
+        return decrypt(findKey(keyStoreWrapper));
+    }
+
+    public byte[] decrypt(final KeyWrapper keyWrapper) throws OwnException {
+        if (scheme.signature) throw new OwnException("Not a cipher text");
+        if (!keyWrapper.hasFingerprint(fingerprint)) throw new OwnException("Wrong key");
+        if (keyWrapper.getKeyAlgorithm() != scheme.keyAlgorithm) {
+            throw new OwnException("Wrong key");
+        }
+
+        final ByteBuffer plainText = ByteBuffer.allocate(keyWrapper.getBlockSize());
+        keyWrapper.decrypt(payload.duplicate(), plainText);
+
+        final byte[] result = new byte[plainText.position()];
+        plainText.flip();
+        plainText.get(result);
+
+        return result;
+    }
+}
@@ -0,0 +1,491 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.List;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+// Encrypts files and streams of any size in constant memory, and backs the
+// stream methods of KeyWrapper. The data key is wrapped with the RSA key,
+// and the data is cut into chunks, each sealed with AES-GCM on its own, so
+// that decryption never holds more than one chunk and can start at any
+// chunk. Buffers come from a bounded pool shared by all the operations of
+// one FileCipher, which caps their memory as a whole.
+//
+// Format: magic, version (1 byte), chunk size (4 bytes), wrapped data key
+// length (2 bytes), wrapped data key, nonce prefix (8 bytes), then one
+// frame of chunk size + 16 bytes per chunk, the last one shorter. Chunk i
+// uses the nonce prefix || i and has a last-chunk flag as associated data,
+// so frames can't be reordered, dropped or cut off unnoticed.
+public final class FileCipher {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x534E4346; // "SNCF"
+    private static final byte VERSION = 1;
+
+    private static final String DATA_CIPHER_TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final int DATA_KEY_SIZE = 256;
+    private static final int NONCE_PREFIX_SIZE = 8;
+    private static final int TAG_SIZE = 16;
+    private static final int FIXED_HEADER_SIZE = 4 + 1 + 4 + 2;
+
+    // Files from this size are read through memory-mapped windows instead
+    // of the pool buffers. Windows are small enough for 32-bit devices.
+    private static final long MAP_THRESHOLD = 16 * 1024 * 1024;
+    private static final int MAP_WINDOW_SIZE = 8 * 1024 * 1024;
+
+    // Each operation holds two frames and one output buffer, except for
+    // the mapped encryption, which reads from the window and needs only
+    // the output buffer.
+    private static final int BUFFERS_PER_OPERATION = 3;
+
+    private static final Metrics.Timer ENCRYPT_TIMER = Metrics.timer("file.encrypt");
+    private static final Metrics.Timer DECRYPT_TIMER = Metrics.timer("file.decrypt");
+    private static final Metrics.Counter CHUNK_COUNTER = Metrics.counter("file.chunks");
+
+    private final int chunkSize;
+    private final BufferPool bufferPool;
+    private final SecureRandom random = new SecureRandom();
+
+    public FileCipher() {
+        this(DEFAULT_CHUNK_SIZE, 2);
+    }
+
+    // Operations beyond the given number wait for buffers.
+    public FileCipher(final int chunkSize, final int maxOperations) {
+        this.chunkSize = chunkSize;
+        this.bufferPool = new BufferPool(
+                chunkSize + TAG_SIZE,
+                BUFFERS_PER_OPERATION * maxOperations);
+    }
+
+    public int getChunkSize() { return chunkSize; }
+
+    public void encrypt(final KeyWrapper keyWrapper, final File plainText, final File cipherText)
+            throws OwnException
+    {
+        try (FileChannel input = new FileInputStream(plainText).getChannel();
+             FileChannel output = new FileOutputStream(cipherText).getChannel()) {
+            encrypt(keyWrapper, input, output);
+        } catch (IOException e) {
+            throw new OwnException("Can not open file", e);
+        }
+    }
+
+    public void decrypt(final KeyWrapper keyWrapper, final File cipherText, final File plainText)
+            throws OwnException
+    {
+        try (FileChannel input = new FileInputStream(cipherText).getChannel();
+             FileChannel output = new FileOutputStream(plainText).getChannel()) {
+            decrypt(keyWrapper, input, output);
+        } catch (IOException e) {
+            throw new OwnException("Can not open file", e);
+        }
+    }
+
+    public void encrypt(
+            final KeyWrapper keyWrapper,
+            final ReadableByteChannel plainText,
+            final WritableByteChannel cipherText
+    )
+            throws OwnException
+    {
+        final long start = ENCRYPT_TIMER.start();
+
+        final SecretKey dataKey = generateDataKey();
+        final byte[] wrappedKey = keyWrapper.encrypt(dataKey.getEncoded());
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        random.nextBytes(noncePrefix);
+
+        final ByteBuffer header = ByteBuffer.allocate(
+                FIXED_HEADER_SIZE + wrappedKey.length + NONCE_PREFIX_SIZE);
+        header.putInt(MAGIC);
+        header.put(VERSION);
+        header.putInt(chunkSize);
+        header.putShort((short)wrappedKey.length);
+        header.put(wrappedKey);
+        header.put(noncePrefix);
+        header.flip();
+        write(cipherText, header, "Can not write cipher text");
+
+        final Chunks chunks = new Chunks(dataKey, noncePrefix, chunkSize);
+        final boolean mapped = isLarge(plainText);
+        final List<ByteBuffer> buffers = bufferPool.acquire(mapped ? 1 : BUFFERS_PER_OPERATION);
+
+        try {
+            if (mapped) {
+                encryptMapped((FileChannel)plainText, cipherText, chunks, buffers.get(0));
+            } else {
+                encryptStream(plainText, cipherText, chunks, buffers);
+            }
+        } finally {
+            bufferPool.release(buffers);
+        }
+
+        ENCRYPT_TIMER.stop(start);
+    }
+
+    public void decrypt(
+            final KeyWrapper keyWrapper,
+            final ReadableByteChannel cipherText,
+            final WritableByteChannel plainText
+    )
+            throws OwnException
+    {
+        final long start = DECRYPT_TIMER.start();
+
+        final Chunks chunks = readHeader(keyWrapper, cipherText);
+        decryptStream(cipherText, plainText, chunks, 0, 0, Long.MAX_VALUE);
+
+        DECRYPT_TIMER.stop(start);
+    }
+
+    // Decrypts length bytes of plain text from the given position on, or
+    // fewer at the end, reading only the chunks that hold them.
+    public void decrypt(
+            final KeyWrapper keyWrapper,
+            final FileChannel cipherText,
+            final long position,
+            final long length,
+            final WritableByteChannel plainText
+    )
+            throws OwnException
+    {
+        if (position < 0) throw new OwnException("Negative position");
+        if (length < 0) throw new OwnException("Negative length");
+
+        final long start = DECRYPT_TIMER.start();
+
+        try {
+            cipherText.position(0);
+            final Chunks chunks = readHeader(keyWrapper, cipherText);
+
+            final long index = position / chunks.chunkSize;
+            cipherText.position(
+                    cipherText.position() + index * (chunks.chunkSize + TAG_SIZE));
+
+            decryptStream(
+                    cipherText,
+                    plainText,
+                    chunks,
+                    index,
+                    (int)(position % chunks.chunkSize),
+                    length);
+        } catch (IOException e) {
+            throw new OwnException("Can not read cipher text", e);
+        }
+
+        DECRYPT_TIMER.stop(start);
+    }
+
+    // A chunk is known to be the last only once the next read finds the end
+    // of the stream, so one chunk is always read ahead.
+    private void encryptStream(
+            final ReadableByteChannel plainText,
+            final WritableByteChannel cipherText,
+            final Chunks chunks,
+            final List<ByteBuffer> buffers
+    )
+            throws OwnException
+    {
+        ByteBuffer current = buffers.get(0);
+        ByteBuffer next = buffers.get(1);
+        final ByteBuffer output = buffers.get(2);
+
+        current.limit(chunkSize);
+        boolean full = read(plainText, current, "Can not read plain text");
+
+        for (long index = 0; ; ++index) {
+            boolean last = true;
+
+            if (full) {
+                next.clear();
+                next.limit(chunkSize);
+                full = read(plainText, next, "Can not read plain text");
+                last = next.position() == 0;
+            }
+
+            current.flip();
+            chunks.transform(Cipher.ENCRYPT_MODE, index, last, current, output);
+            write(cipherText, output, "Can not write cipher text");
+
+            if (last) return;
+
+            final ByteBuffer swap = current;
+            current = next;
+            next = swap;
+        }
+    }
+
+    private void encryptMapped(
+            final FileChannel plainText,
+            final WritableByteChannel cipherText,
+            final Chunks chunks,
+            final ByteBuffer output
+    )
+            throws OwnException
+    {
+        try {
+            final long base = plainText.position();
+            final long size = plainText.size() - base;
+            final long chunkCount = Math.max(1, (size + chunkSize - 1) / chunkSize);
+            final long windowSize = (long)chunkSize * Math.max(1, MAP_WINDOW_SIZE / chunkSize);
+
+            MappedByteBuffer window = null;
+            long windowStart = 0;
+
+            for (long index = 0; index < chunkCount; ++index) {
+                final long offset = index * chunkSize;
+
+                if (window == null || offset >= windowStart + window.capacity()) {
+                    windowStart = offset;
+                    window = plainText.map(
+                            FileChannel.MapMode.READ_ONLY,
+                            base + offset,
+                            Math.min(windowSize, size - offset));
+                }
+
+                final ByteBuffer chunk = window.duplicate();
+                chunk.position((int)(offset - windowStart));
+                chunk.limit(Math.min(chunk.position() + chunkSize, window.capacity()));
+
+                chunks.transform(
+                        Cipher.ENCRYPT_MODE, index, index == chunkCount - 1, chunk, output);
+                write(cipherText, output, "Can not write cipher text");
+            }
+
+            plainText.position(base + size);
+        } catch (IOException e) {
+            throw new OwnException("Can not read plain text", e);
+        }
+    }
+
+    private void decryptStream(
+            final ReadableByteChannel cipherText,
+            final WritableByteChannel plainText,
+            final Chunks chunks,
+            final long firstIndex,
+            final int skip,
+            final long length
+    )
+            throws OwnException
+    {
+        if (chunks.chunkSize > chunkSize) throw new OwnException("Unsupported chunk size");
+        if (length <= 0) return;
+
+        final int frameSize = chunks.chunkSize + TAG_SIZE;
+        final List<ByteBuffer> buffers = bufferPool.acquire(BUFFERS_PER_OPERATION);
+
+        try {
+            ByteBuffer current = buffers.get(0);
+            ByteBuffer next = buffers.get(1);
+            final ByteBuffer output = buffers.get(2);
+
+            current.limit(frameSize);
+            boolean full = read(cipherText, current, "Can not read cipher text");
+
+            if (firstIndex > 0 && current.position() == 0) {
+                throw new OwnException("Position out of range");
+            }
+
+            long remaining = length;
+            int skipped = skip;
+
+            for (long index = firstIndex; ; ++index) {
+                boolean last = true;
+
+                if (full) {
+                    next.clear();
+                    next.limit(frameSize);
+                    full = read(cipherText, next, "Can not read cipher text");
+                    last = next.position() == 0;
+                }
+
+                if (current.position() < TAG_SIZE) throw new OwnException("Truncated cipher text");
+
+                current.flip();
+                chunks.transform(Cipher.DECRYPT_MODE, index, last, current, output);
+
+                output.position(Math.min(skipped, output.limit()));
+                skipped = 0;
+                if (output.remaining() > remaining) {
+                    output.limit(output.position() + (int)remaining);
+                }
+                remaining -= output.remaining();
+                write(plainText, output, "Can not write plain text");
+
+                if (last || remaining == 0) return;
+
+                final ByteBuffer swap = current;
+                current = next;
+                next = swap;
+            }
+        } finally {
+            bufferPool.release(buffers);
+        }
+    }
+
+    private Chunks readHeader(final KeyWrapper keyWrapper, final ReadableByteChannel cipherText)
+            throws OwnException
+    {
+        final ByteBuffer fixedHeader = ByteBuffer.allocate(FIXED_HEADER_SIZE);
+        if (!read(cipherText, fixedHeader, "Can not read cipher text")) {
+            throw new OwnException("Truncated cipher text");
+        }
+        fixedHeader.flip();
+
+        if (fixedHeader.getInt() != MAGIC) throw new OwnException("Not an encrypted file");
+        if (fixedHeader.get() != VERSION) throw new OwnException("Unsupported version");
+
+        final int fileChunkSize = fixedHeader.getInt();
+        if (fileChunkSize <= 0) throw new OwnException("Invalid chunk size");
+
+        final ByteBuffer rest = ByteBuffer.allocate(
+                (fixedHeader.getShort() & 0xffff) + NONCE_PREFIX_SIZE);
+        if (!read(cipherText, rest, "Can not read cipher text")) {
+            throw new OwnException("Truncated cipher text");
+        }
+        rest.flip();
+
+        final byte[] wrappedKey = new byte[rest.remaining() - NONCE_PREFIX_SIZE];
+        final byte[] noncePrefix = new byte[NONCE_PREFIX_SIZE];
+        rest.get(wrappedKey);
+        rest.get(noncePrefix);
+
+        final SecretKey dataKey = new SecretKeySpec(keyWrapper.decrypt(wrappedKey), "AES");
+
+        return new Chunks(dataKey, noncePrefix, fileChunkSize);
+    }
+
+    private static boolean isLarge(final ReadableByteChannel plainText) throws OwnException {
+        if (!(plainText instanceof FileChannel)) return false;
+
+        try {
+            final FileChannel fileChannel = (FileChannel)plainText;
+            return fileChannel.size() - fileChannel.position() >= MAP_THRESHOLD;
+        } catch (IOException e) {
+            throw new OwnException("Can not read plain text", e);
+        }
+    }
+
+    private static SecretKey generateDataKey() throws OwnException {
+        try {
+            final KeyGenerator keyGenerator = KeyGenerator.getInstance("AES");
+            keyGenerator.init(DATA_KEY_SIZE);
+            return keyGenerator.generateKey();
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        }
+    }
+
+    // Returns whether the buffer has been filled, false at the end of the
+    // stream.
+    private static boolean read(
+            final ReadableByteChannel channel,
+            final ByteBuffer buffer,
+            final String message
+    )
+            throws OwnException
+    {
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) == -1) return false;
+            }
+            return true;
+        } catch (IOException e) {
+            throw new OwnException(message, e);
+        }
+    }
+
+    private static void write(
+            final WritableByteChannel channel,
+            final ByteBuffer buffer,
+            final String message
+    )
+            throws OwnException
+    {
+        try {
+            while (buffer.hasRemaining()) channel.write(buffer);
+        } catch (IOException e) {
+            throw new OwnException(message, e);
+        }
+    }
+
+    private static final class Chunks {
+        private final SecretKey dataKey;
+        private final byte[] noncePrefix;
+        private final int chunkSize;
+
+        private Chunks(final SecretKey dataKey, final byte[] noncePrefix, final int chunkSize) {
+            this.dataKey = dataKey;
+            this.noncePrefix = noncePrefix;
+            this.chunkSize = chunkSize;
+        }
+
+        // Leaves the output flipped, ready to be written.
+        private void transform(
+                final int mode,
+                final long index,
+                final boolean last,
+                final ByteBuffer input,
+                final ByteBuffer output
+        )
+                throws OwnException
+        {
+            if (index >= 1L << 32) throw new OwnException("Too many chunks");
+
+            final Cipher cipher = EnginePool.cipher(
+                    DATA_CIPHER_TRANSFORMATION,
+                    mode,
+                    dataKey,
+                    new GCMParameterSpec(TAG_SIZE * 8, nonce(index)));
+
+            try {
+                cipher.updateAAD(new byte[] { (byte)(last ? 1 : 0) });
+
+                output.clear();
+                cipher.doFinal(input, output);
+                output.flip();
+
+                EnginePool.recycle(cipher);
+                CHUNK_COUNTER.increment();
+            } catch (AEADBadTagException e) {
+                throw new OwnException("Chunk authentication failed", e);
+            } catch (BadPaddingException e) {
+                throw new OwnException("Bad padding", e);
+            } catch (IllegalBlockSizeException e) {
+                throw new OwnException("Illegal block size", e);
+            } catch (ShortBufferException e) {
+                throw new OwnException("Short buffer", e);
+            }
+        }
+
+        private byte[] nonce(final long index) {
+            final byte[] nonce = new byte[NONCE_PREFIX_SIZE + 4];
+            System.arraycopy(noncePrefix, 0, nonce, 0, NONCE_PREFIX_SIZE);
+            nonce[NONCE_PREFIX_SIZE] = (byte)(index >>> 24);
+            nonce[NONCE_PREFIX_SIZE + 1] = (byte)(index >>> 16);
+            nonce[NONCE_PREFIX_SIZE + 2] = (byte)(index >>> 8);
+            nonce[NONCE_PREFIX_SIZE + 3] = (byte)index;
+            return nonce;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.ByteArrayOutputStream;
+import java.security.SignatureException;
+import java.util.Arrays;
+
+public enum KeyAlgorithm {
+    RSA("RSA", 2048, "SHA256withRSA", true),
+    // NIST P-256. ECDSA signatures are given out in the fixed-size r || s
+    // form instead of the DER form produced by the JCA engines.
+    EC("EC", 256, "SHA256withECDSA", false);
+
+    private static final int EC_COORDINATE_SIZE = 32;
+
+    private final String name;
+    private final int keySize;
+    private final String signatureAlgorithm;
+    private final boolean encryptionSupported;
+
+    KeyAlgorithm(
+            final String name,
+            final int keySize,
+            final String signatureAlgorithm,
+            final boolean encryptionSupported
+    ) {
+        this.name = name;
+        this.keySize = keySize;
+        this.signatureAlgorithm = signatureAlgorithm;
+        this.encryptionSupported = encryptionSupported;
+    }
+
+    public static KeyAlgorithm of(final String name) throws OwnException {
+        for (KeyAlgorithm keyAlgorithm : values()) {
+            if (keyAlgorithm.name.equals(name)) return keyAlgorithm;
+        }
+
+        throw new OwnException("Unsupported key algorithm");
+    }
+
+    public String getName() { return name; }
+
+    public int getKeySize() { return keySize; }
+
+    public String getSignatureAlgorithm() { return signatureAlgorithm; }
+
+    public boolean isEncryptionSupported() { return encryptionSupported; }
+
+    // Size of the signatures given out, which is fixed for both algorithms.
+    public int getSignatureSize() {
+        if (this == EC) return 2 * EC_COORDINATE_SIZE;
+
+        return keySize / 8;
+    }
+
+    // Whether signatures are given out as the engines produce them.
+    boolean usesEngineSignatureFormat() { return this != EC; }
+
+    byte[] fromEngineSignature(final byte[] signature) throws SignatureException {
+        if (usesEngineSignatureFormat()) return signature;
+
+        return derToRaw(signature);
+    }
+
+    byte[] toEngineSignature(final byte[] signature) throws SignatureException {
+        if (usesEngineSignatureFormat()) return signature;
+
+        return rawToDer(signature);
+    }
+
+    // SEQUENCE { INTEGER r, INTEGER s } to r || s, both left-padded.
+    private static byte[] derToRaw(final byte[] der) throws SignatureException {
+        final byte[] raw = new byte[2 * EC_COORDINATE_SIZE];
+
+        int offset = 0;
+        if (der.length < 2 || der[offset++] != 0x30) throw new SignatureException("Invalid DER");
+        offset = skipLength(der, offset);
+
+        for (int i = 0; i < 2; ++i) {
+            if (offset >= der.length || der[offset++] != 0x02) {
+                throw new SignatureException("Invalid DER");
+            }
+            if (offset >= der.length) throw new SignatureException("Invalid DER");
+
+            int length = der[offset++] & 0xff;
+            if (offset + length > der.length) throw new SignatureException("Invalid DER");
+
+            while (length > 0 && der[offset] == 0) {
+                ++offset;
+                --length;
+            }
+            if (length > EC_COORDINATE_SIZE) throw new SignatureException("Invalid DER");
+
+            System.arraycopy(
+                    der, offset,
+                    raw, (i + 1) * EC_COORDINATE_SIZE - length,
+                    length);
+            offset += length;
+        }
+
+        return raw;
+    }
+
+    private static byte[] rawToDer(final byte[] raw) throws SignatureException {
+        if (raw.length != 2 * EC_COORDINATE_SIZE) {
+            throw new SignatureException("Invalid signature length");
+        }
+
+        final ByteArrayOutputStream integers = new ByteArrayOutputStream();
+
+        for (int i = 0; i < 2; ++i) {
+            final byte[] value = Arrays.copyOfRange(
+                    raw,
+                    i * EC_COORDINATE_SIZE,
+                    (i + 1) * EC_COORDINATE_SIZE);
+
+            int start = 0;
+            while (start < value.length - 1 && value[start] == 0) ++start;
+            final boolean negative = (value[start] & 0x80) != 0;
+
+            integers.write(0x02);
+            integers.write(value.length - start + (negative ? 1 : 0));
+            if (negative) integers.write(0);
+            integers.write(value, start, value.length - start);
+        }
+
+        final ByteArrayOutputStream der = new ByteArrayOutputStream();
+        der.write(0x30);
+        der.write(integers.size());
+        der.write(integers.toByteArray(), 0, integers.size());
+
+        return der.toByteArray();
+    }
+
+    private static int skipLength(final byte[] der, int offset) throws SignatureException {
+        final int first = der[offset++] & 0xff;
+
+        if (first < 0x80) return offset;
+
+        final int count = first & 0x7f;
+        if (count == 0 || offset + count > der.length) throw new SignatureException("Invalid DER");
+
+        return offset + count;
+    }
+}
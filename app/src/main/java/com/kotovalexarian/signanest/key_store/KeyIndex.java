@@ -0,0 +1,226 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Persistent copy of the key list and the metadata of each key, so that
+// the list can be shown on a cold start before the key store is loaded.
+// It is only a cache: the key store stays the source of truth, and
+// AsyncKeyStoreWrapper adds and drops entries in the background after
+// every refresh. An unreadable index is treated as empty and rebuilt.
+//
+// The file is a small binary format: magic, version, number of entries,
+// then each entry as alias, algorithm, key size, purposes, creation time,
+// hardware flag and SHA-256 digest of the encoded public key.
+public final class KeyIndex {
+    private static final int MAGIC = 0x53494458; // "SIDX"
+    private static final int VERSION = 1;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+
+    private final File file;
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    private boolean loaded = false;
+
+    // The file is read on first use, so the index can be created on any
+    // thread and read on a background one.
+    public KeyIndex(final File file) {
+        this.file = file;
+    }
+
+    private void ensureLoaded() {
+        if (loaded) return;
+
+        loaded = true;
+
+        if (!file.exists()) return;
+
+        try (DataInputStream input = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)))) {
+            if (input.readInt() != MAGIC || input.readInt() != VERSION) return;
+
+            final int count = input.readInt();
+            final TreeMap<String, Entry> result = new TreeMap<>();
+
+            for (int i = 0; i < count; ++i) {
+                final Entry entry = read(input);
+                result.put(entry.getMetadata().getAlias(), entry);
+            }
+
+            entries.putAll(result);
+        } catch (IOException e) {
+            // Rebuilt by the next reconciliation.
+        }
+    }
+
+    // Sorted by alias, like the key list of KeyStoreWrapper.
+    public synchronized List<String> getAliases() {
+        ensureLoaded();
+        return new ArrayList<>(entries.keySet());
+    }
+
+    public synchronized List<Entry> getEntries() {
+        ensureLoaded();
+        return new ArrayList<>(entries.values());
+    }
+
+    public synchronized Entry get(final String alias) {
+        ensureLoaded();
+        return entries.get(alias);
+    }
+
+    public synchronized void putAll(final Collection<Entry> entries) throws OwnException {
+        ensureLoaded();
+
+        boolean changed = false;
+
+        for (Entry entry : entries) {
+            final Entry previous = this.entries.put(entry.getMetadata().getAlias(), entry);
+            if (!entry.equals(previous)) changed = true;
+        }
+
+        if (changed) save();
+    }
+
+    // Forgets the keys that are no longer in the key store.
+    public synchronized void retainAliases(final Collection<String> aliases)
+            throws OwnException
+    {
+        ensureLoaded();
+
+        if (entries.keySet().retainAll(new HashSet<>(aliases))) save();
+    }
+
+    public static Entry entry(final KeyWrapper keyWrapper) throws OwnException {
+        return new Entry(
+                keyWrapper.getMetadata(),
+                digest(keyWrapper.getPublicKey().getEncoded()));
+    }
+
+    static byte[] digest(final byte[] encodedPublicKey) throws OwnException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM).digest(encodedPublicKey);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        }
+    }
+
+    // Written to a temporary file first, so a crash can't leave it half written.
+    private void save() throws OwnException {
+        final File temporaryFile = new File(file.getPath() + ".tmp");
+
+        try (FileOutputStream fileOutput = new FileOutputStream(temporaryFile)) {
+            final DataOutputStream output =
+                    new DataOutputStream(new BufferedOutputStream(fileOutput));
+
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeInt(entries.size());
+
+            for (Map.Entry<String, Entry> entry : entries.entrySet()) {
+                write(output, entry.getValue());
+            }
+
+            output.flush();
+            // Synced before the rename, as in AliasMap.
+            fileOutput.getFD().sync();
+        } catch (IOException e) {
+            throw new OwnException("Can not write key index", e);
+        }
+
+        if (!temporaryFile.renameTo(file)) throw new OwnException("Can not write key index");
+    }
+
+    private static Entry read(final DataInputStream input) throws IOException {
+        final String alias = input.readUTF();
+        final String algorithm = input.readUTF();
+        final int keySize = input.readInt();
+        final int purposes = input.readInt();
+        final long creationTime = input.readLong();
+        final boolean hardwareBacked = input.readBoolean();
+
+        final byte[] publicKeyDigest = new byte[input.readUnsignedByte()];
+        input.readFully(publicKeyDigest);
+
+        return new Entry(
+                new KeyMetadata(
+                        alias,
+                        algorithm,
+                        keySize,
+                        purposes,
+                        creationTime < 0 ? null : new Date(creationTime),
+                        hardwareBacked),
+                publicKeyDigest);
+    }
+
+    private static void write(final DataOutputStream output, final Entry entry)
+            throws IOException
+    {
+        final KeyMetadata keyMetadata = entry.getMetadata();
+        final Date creationDate = keyMetadata.getCreationDate();
+
+        output.writeUTF(keyMetadata.getAlias());
+        output.writeUTF(keyMetadata.getAlgorithm());
+        output.writeInt(keyMetadata.getKeySize());
+        output.writeInt(keyMetadata.getPurposes());
+        output.writeLong(creationDate == null ? -1 : creationDate.getTime());
+        output.writeBoolean(keyMetadata.isHardwareBacked());
+        output.writeByte(entry.publicKeyDigest.length);
+        output.write(entry.publicKeyDigest);
+    }
+
+    public static final class Entry {
+        private final KeyMetadata metadata;
+        private final byte[] publicKeyDigest;
+
+        public Entry(final KeyMetadata metadata, final byte[] publicKeyDigest) {
+            this.metadata = metadata;
+            this.publicKeyDigest = publicKeyDigest;
+        }
+
+        public KeyMetadata getMetadata() { return metadata; }
+
+        public byte[] getPublicKeyDigest() { return publicKeyDigest.clone(); }
+
+        // Whether the entry still describes the given key.
+        public boolean matches(final KeyWrapper keyWrapper) throws OwnException {
+            return MessageDigest.isEqual(
+                    publicKeyDigest,
+                    digest(keyWrapper.getPublicKey().getEncoded()));
+        }
+
+        // The alias and the digest identify the key, the rest follows from it.
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof Entry)) return false;
+
+            final Entry entry = (Entry)object;
+
+            return metadata.getAlias().equals(entry.metadata.getAlias()) &&
+                    Arrays.equals(publicKeyDigest, entry.publicKeyDigest);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * metadata.getAlias().hashCode() + Arrays.hashCode(publicKeyDigest);
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.util.Date;
+
+public final class KeyMetadata {
+    private final String alias;
+    private final String algorithm;
+    private final int keySize;
+    private final int purposes;
+    private final Date creationDate;
+    private final boolean hardwareBacked;
+
+    public KeyMetadata(
+            final String alias,
+            final String algorithm,
+            final int keySize,
+            final int purposes,
+            final Date creationDate,
+            final boolean hardwareBacked
+    ) {
+        this.alias = alias;
+        this.algorithm = algorithm;
+        this.keySize = keySize;
+        this.purposes = purposes;
+        this.creationDate = creationDate;
+        this.hardwareBacked = hardwareBacked;
+    }
+
+    public String getAlias() { return alias; }
+
+    public String getAlgorithm() { return algorithm; }
+
+    public int getKeySize() { return keySize; }
+
+    public int getPurposes() { return purposes; }
+
+    public Date getCreationDate() { return creationDate; }
+
+    public boolean isHardwareBacked() { return hardwareBacked; }
+}
@@ -0,0 +1,218 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Loads key metadata in the background, one page of keys around the
+// requested position at a time, and keeps the most recently used results.
+// Like the key list of AsyncKeyStoreWrapper, it must only be used from
+// the callback thread.
+//
+// With a KeyIndex the cache starts with the metadata saved there, and every
+// loaded page is saved to it. Saved entries are shown at once, and checked
+// against the public keys a page at a time, when they are first shown.
+public final class KeyMetadataCache {
+    private static final int CAPACITY = 1024;
+
+    private final AsyncKeyStoreWrapper asyncKeyStoreWrapper;
+    private final KeyIndex keyIndex;
+    private final int pageSize;
+
+    private final LinkedHashMap<String, KeyMetadata> cache =
+            new LinkedHashMap<String, KeyMetadata>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<String, KeyMetadata> eldest) {
+                    return size() > CAPACITY;
+                }
+            };
+
+    private final HashSet<String> pending = new HashSet<>();
+
+    // Cached from the index and not checked against the key store yet.
+    private final HashSet<String> unchecked = new HashSet<>();
+
+    // Keys without readable metadata aren't requested again, otherwise each
+    // rebind after a load would start another load of the same page.
+    private final HashSet<String> failed = new HashSet<>();
+
+    private final ArrayList<OnLoadListener> loadListeners = new ArrayList<>();
+
+    public KeyMetadataCache(final AsyncKeyStoreWrapper asyncKeyStoreWrapper, final int pageSize) {
+        this.asyncKeyStoreWrapper = asyncKeyStoreWrapper;
+        this.keyIndex = asyncKeyStoreWrapper.getKeyIndex();
+        this.pageSize = pageSize;
+
+        asyncKeyStoreWrapper.addChangeListener(new AsyncKeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final String alias) {}
+
+            @Override
+            public void onRemoved(final int position, final String alias) {
+                cache.remove(alias);
+                unchecked.remove(alias);
+                failed.remove(alias);
+            }
+        });
+
+        if (keyIndex != null) readIndex();
+    }
+
+    public void addLoadListener(final OnLoadListener listener) {
+        loadListeners.add(listener);
+    }
+
+    public void removeLoadListener(final OnLoadListener listener) {
+        loadListeners.remove(listener);
+    }
+
+    // Returns cached metadata, or null after scheduling a load of the page
+    // around the position. Listeners are told when the page has arrived.
+    // Metadata from the index is returned before it has been checked.
+    public KeyMetadata get(final int position) {
+        final String alias = asyncKeyStoreWrapper.getAlias(position);
+
+        final KeyMetadata keyMetadata = cache.get(alias);
+
+        if (keyMetadata == null || unchecked.contains(alias)) {
+            if (!pending.contains(alias) && !failed.contains(alias)) load(position);
+        }
+
+        return keyMetadata;
+    }
+
+    private void readIndex() {
+        asyncKeyStoreWrapper.readIndex(new AsyncKeyStoreWrapper.Callback<List<KeyIndex.Entry>>() {
+            @Override
+            public void onSuccess(final List<KeyIndex.Entry> entries) {
+                for (KeyIndex.Entry entry : entries) {
+                    final String alias = entry.getMetadata().getAlias();
+
+                    // Loaded from the key store in the meantime.
+                    if (cache.containsKey(alias)) continue;
+
+                    cache.put(alias, entry.getMetadata());
+                    unchecked.add(alias);
+                }
+
+                for (OnLoadListener listener : new ArrayList<>(loadListeners)) {
+                    listener.onLoaded(0, asyncKeyStoreWrapper.getCount());
+                }
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {}
+        });
+    }
+
+    private void load(final int position) {
+        final int from = Math.max(0, position - pageSize / 2);
+        final int to = Math.min(asyncKeyStoreWrapper.getCount(), from + pageSize);
+
+        final ArrayList<String> aliases = new ArrayList<>();
+
+        for (int i = from; i < to; ++i) {
+            final String alias = asyncKeyStoreWrapper.getAlias(i);
+
+            if ((cache.containsKey(alias) && !unchecked.contains(alias)) ||
+                    pending.contains(alias) || failed.contains(alias)) {
+                continue;
+            }
+
+            pending.add(alias);
+            aliases.add(alias);
+        }
+
+        if (aliases.isEmpty()) return;
+
+        asyncKeyStoreWrapper.submit(
+                new AsyncKeyStoreWrapper.Operation<List<KeyMetadata>>() {
+                    @Override
+                    public List<KeyMetadata> run(final KeyStoreWrapper keyStoreWrapper) {
+                        final ArrayList<KeyMetadata> result = new ArrayList<>();
+                        final ArrayList<KeyIndex.Entry> entries = new ArrayList<>();
+
+                        for (String alias : aliases) {
+                            try {
+                                final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+
+                                if (keyIndex == null) {
+                                    result.add(keyWrapper.getMetadata());
+                                    continue;
+                                }
+
+                                // A key deleted and created again under the
+                                // same alias has a different public key.
+                                final KeyIndex.Entry saved = keyIndex.get(alias);
+
+                                if (saved != null && saved.matches(keyWrapper)) {
+                                    result.add(saved.getMetadata());
+                                } else {
+                                    final KeyIndex.Entry entry = KeyIndex.entry(keyWrapper);
+                                    entries.add(entry);
+                                    result.add(entry.getMetadata());
+                                }
+                            } catch (OwnException e) {
+                                // Reported as failed below.
+                            }
+                        }
+
+                        saveToIndex(entries);
+
+                        return result;
+                    }
+                },
+                new AsyncKeyStoreWrapper.Callback<List<KeyMetadata>>() {
+                    @Override
+                    public void onSuccess(final List<KeyMetadata> result) {
+                        final HashSet<String> loaded = new HashSet<>();
+
+                        for (KeyMetadata keyMetadata : result) {
+                            cache.put(keyMetadata.getAlias(), keyMetadata);
+                            loaded.add(keyMetadata.getAlias());
+                        }
+
+                        for (String alias : aliases) {
+                            pending.remove(alias);
+                            unchecked.remove(alias);
+
+                            // Saved metadata of a key that can't be read isn't shown.
+                            if (!loaded.contains(alias)) {
+                                cache.remove(alias);
+                                failed.add(alias);
+                            }
+                        }
+
+                        for (OnLoadListener listener : new ArrayList<>(loadListeners)) {
+                            listener.onLoaded(from, to);
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(final OwnException e) {
+                        for (String alias : aliases) {
+                            pending.remove(alias);
+                            failed.add(alias);
+                        }
+                    }
+                });
+    }
+
+    // Runs on the key store thread.
+    private void saveToIndex(final List<KeyIndex.Entry> entries) {
+        if (keyIndex == null || entries.isEmpty()) return;
+
+        try {
+            keyIndex.putAll(entries);
+        } catch (OwnException e) {
+            // Missing entries are loaded and saved again on the next start.
+        }
+    }
+
+    public interface OnLoadListener {
+        // Positions are those at the time of the request and may be stale.
+        void onLoaded(int from, int to);
+    }
+}
@@ -0,0 +1,125 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.UUID;
+
+// Key pairs generated ahead of time under reserved aliases, so that
+// creating a key only has to claim one. AndroidKeyStore can neither rename
+// nor re-import its keys, so a claimed key keeps its reserved entry alias
+// and the user-visible alias is mapped to it by a persistent AliasMap.
+public final class KeyPool {
+    static final String ALIAS_PREFIX = "signanest.pool.";
+
+    private final AliasMap aliasMap;
+    private final KeyAlgorithm keyAlgorithm;
+    private final int size;
+    private final RefillPolicy refillPolicy;
+
+    private final ArrayList<String> spareEntryAliases = new ArrayList<>();
+
+    public KeyPool(
+            final File aliasMapFile,
+            final KeyAlgorithm keyAlgorithm,
+            final int size,
+            final RefillPolicy refillPolicy
+    )
+            throws OwnException
+    {
+        this.aliasMap = new AliasMap(aliasMapFile);
+        this.keyAlgorithm = keyAlgorithm;
+        this.size = size;
+        this.refillPolicy = refillPolicy;
+    }
+
+    public KeyAlgorithm getKeyAlgorithm() { return keyAlgorithm; }
+
+    public int getSize() { return size; }
+
+    public RefillPolicy getRefillPolicy() { return refillPolicy; }
+
+    public synchronized int getSpareCount() { return spareEntryAliases.size(); }
+
+    static boolean isPoolAlias(final String entryAlias) {
+        return entryAlias.startsWith(ALIAS_PREFIX);
+    }
+
+    String newEntryAlias() {
+        return ALIAS_PREFIX + keyAlgorithm.getName() + "." + UUID.randomUUID();
+    }
+
+    synchronized boolean needsRefill() {
+        return spareEntryAliases.size() < size;
+    }
+
+    synchronized String getEntryAlias(final String alias) {
+        return aliasMap.getEntryAlias(alias);
+    }
+
+    // Returns the alias a pool entry was claimed for, or null for a spare.
+    synchronized String getAlias(final String entryAlias) {
+        return aliasMap.getAlias(entryAlias);
+    }
+
+    // A refresh by another wrapper sharing the pool may have found the new
+    // entry already, and a spare must not be claimed twice.
+    synchronized void addSpare(final String entryAlias) {
+        if (!spareEntryAliases.contains(entryAlias)) spareEntryAliases.add(entryAlias);
+    }
+
+    // Returns the entry alias of the claimed key, or null if there is no
+    // spare key of the given algorithm.
+    synchronized String claim(final String alias, final KeyAlgorithm keyAlgorithm)
+            throws OwnException
+    {
+        final String prefix = ALIAS_PREFIX + keyAlgorithm.getName() + ".";
+
+        for (int i = 0; i < spareEntryAliases.size(); ++i) {
+            final String entryAlias = spareEntryAliases.get(i);
+
+            if (entryAlias.startsWith(prefix)) {
+                aliasMap.add(alias, entryAlias);
+                spareEntryAliases.remove(i);
+                return entryAlias;
+            }
+        }
+
+        return null;
+    }
+
+    // Undoes a claim, so the key is spare again.
+    synchronized void release(final String alias) throws OwnException {
+        final String entryAlias = aliasMap.getEntryAlias(alias);
+        if (entryAlias == null) return;
+
+        aliasMap.remove(alias);
+        addSpare(entryAlias);
+    }
+
+    // Drops the mapping of a deleted key, if it was claimed from the pool.
+    synchronized void forget(final String alias) throws OwnException {
+        aliasMap.remove(alias);
+    }
+
+    // Called on refresh with every entry alias in the key store.
+    synchronized void reset(final Collection<String> entryAliases) throws OwnException {
+        aliasMap.retainEntries(new HashSet<>(entryAliases));
+
+        spareEntryAliases.clear();
+
+        for (String entryAlias : entryAliases) {
+            if (isPoolAlias(entryAlias) && aliasMap.getAlias(entryAlias) == null) {
+                spareEntryAliases.add(entryAlias);
+            }
+        }
+    }
+
+    public enum RefillPolicy {
+        // Refilled in the background right after a key has been claimed.
+        ON_CLAIM,
+        // Refilled only when refill is requested, for example when idle.
+        MANUAL,
+    }
+}
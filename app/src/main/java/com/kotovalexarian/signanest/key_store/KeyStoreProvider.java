@@ -0,0 +1,23 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.security.KeyStore;
+import java.security.PrivateKey;
+
+// Backend of KeyStoreWrapper: the key store itself, plus the parts that
+// JCA leaves to each implementation, which are key generation and key
+// properties. AndroidKeyStoreProvider is used on devices, and
+// SoftwareKeyStoreProvider lets the package run on a plain JVM.
+public interface KeyStoreProvider {
+    KeyStore loadKeyStore() throws OwnException;
+
+    void generateKeyPair(KeyStore keyStore, String entryAlias, KeyAlgorithm keyAlgorithm)
+            throws OwnException;
+
+    KeyMetadata getMetadata(
+            KeyStore keyStore,
+            String alias,
+            String entryAlias,
+            PrivateKey privateKey
+    )
+            throws OwnException;
+}
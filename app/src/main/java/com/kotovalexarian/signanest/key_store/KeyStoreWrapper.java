@@ -1,129 +1,612 @@
 package com.kotovalexarian.signanest.key_store;
 
-import android.security.keystore.KeyGenParameterSpec;
-import android.security.keystore.KeyProperties;
-
-import java.io.IOException;
-import java.security.GeneralSecurityException;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.KeyPair;
-import java.security.KeyPairGenerator;
+import java.nio.ByteBuffer;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.cert.CertificateException;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
+// Safe for any number of reader threads. The key list is an immutable
+// snapshot that writers replace as a whole, so readers never block and
+// never see a list in the middle of a refresh. Writers, that is refresh,
+// create and delete of any kind, are serialized. Creating or deleting a
+// single key changes the list in place of a refresh, and refresh listeners
+// run after any change of the list.
+//
+// Keys are listed in the lexical order of their aliases, not in key store
+// order. Keys claimed from a KeyPool are stored under random entry aliases,
+// so key store order would place them arbitrarily, and AsyncKeyStoreWrapper
+// relies on the sorted order to reconcile its copy of the list.
 public final class KeyStoreWrapper {
-    private final String keyStoreProvider = "AndroidKeyStore";
+    private static final Metrics.Timer REFRESH_TIMER = Metrics.timer("keyStore.refresh");
+    private static final Metrics.Timer CREATE_TIMER = Metrics.timer("keyStore.create");
+    private static final Metrics.Timer CREATE_ALL_TIMER = Metrics.timer("keyStore.createAll");
+    private static final Metrics.Timer DELETE_ALL_TIMER = Metrics.timer("keyStore.deleteAll");
+    private static final Metrics.Timer ALIASES_TIMER = Metrics.timer("phase.keystore.aliases");
+    private static final Metrics.Timer GENERATE_TIMER = Metrics.timer("phase.keystore.generate");
+    private static final Metrics.Counter POOL_CLAIM_COUNTER = Metrics.counter("keyPool.claimed");
 
+    private final KeyStoreProvider keyStoreProvider;
     private final KeyStore keyStore;
 
-    private final ArrayList<KeyWrapper> keyWrappers = new ArrayList<>();
+    private final KeyPool keyPool;
 
-    private Runnable onRefresh = null;
+    private volatile List<KeyWrapper> keyWrappers =
+            Collections.unmodifiableList(new ArrayList<KeyWrapper>());
+
+    // Filled in on demand, see getByFingerprint(). It outlives the lists, so
+    // it may hold wrappers that are no longer listed, and it is complete when
+    // the list it was last completed for is still the current one.
+    private final ConcurrentHashMap<Long, KeyWrapper> keyWrappersByFingerprint =
+            new ConcurrentHashMap<>();
+    private volatile List<KeyWrapper> fingerprintedKeyWrappers = null;
+
+    private final Object writeLock = new Object();
+
+    private final CopyOnWriteArrayList<Runnable> refreshListeners =
+            new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<OnChangeListener> changeListeners =
+            new CopyOnWriteArrayList<>();
 
     public KeyStoreWrapper() throws OwnException {
-        try {
-            keyStore = KeyStore.getInstance(keyStoreProvider);
-            keyStore.load(null);
-        } catch (KeyStoreException | CertificateException | IOException | NoSuchAlgorithmException e) {
-            throw new OwnException("Can not initialize key store", e);
-        }
+        this(new AndroidKeyStoreProvider(), null);
+    }
+
+    public KeyStoreWrapper(final KeyPool keyPool) throws OwnException {
+        this(new AndroidKeyStoreProvider(), keyPool);
+    }
+
+    public KeyStoreWrapper(final KeyStoreProvider keyStoreProvider) throws OwnException {
+        this(keyStoreProvider, null);
+    }
+
+    public KeyStoreWrapper(final KeyStoreProvider keyStoreProvider, final KeyPool keyPool)
+            throws OwnException
+    {
+        this.keyStoreProvider = keyStoreProvider;
+        this.keyPool = keyPool;
+
+        keyStore = keyStoreProvider.loadKeyStore();
 
         refresh();
     }
 
-    public void onRefresh(final Runnable onRefresh) throws OwnException {
-        if (this.onRefresh != null) throw new OwnException("Refresh callback already set");
+    public void addRefreshListener(final Runnable listener) {
+        refreshListeners.add(listener);
+    }
+
+    public void removeRefreshListener(final Runnable listener) {
+        refreshListeners.remove(listener);
+    }
 
-        this.onRefresh = onRefresh;
+    public void addChangeListener(final OnChangeListener listener) {
+        changeListeners.add(listener);
     }
 
+    public void removeChangeListener(final OnChangeListener listener) {
+        changeListeners.remove(listener);
+    }
+
+    public KeyStoreProvider getKeyStoreProvider() { return keyStoreProvider; }
+
+    public KeyPool getKeyPool() { return keyPool; }
+
     public int getCount() { return keyWrappers.size(); }
 
     public KeyWrapper getByAlias(final String alias) throws OwnException {
+        final List<KeyWrapper> keyWrappers = this.keyWrappers;
+        final int position = find(keyWrappers, alias);
+
+        if (position < 0) throw new OwnException("Alias doesn't exist");
+
+        return keyWrappers.get(position);
+    }
+
+    // Like Collections.binarySearch(), by alias in a sorted list.
+    private static int find(final List<KeyWrapper> keyWrappers, final String alias) {
+        int low = 0;
+        int high = keyWrappers.size() - 1;
+
+        while (low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int comparison = keyWrappers.get(middle).getAlias().compareTo(alias);
+
+            if (comparison < 0) {
+                low = middle + 1;
+            } else if (comparison > 0) {
+                high = middle - 1;
+            } else {
+                return middle;
+            }
+        }
+
+        return -(low + 1);
+    }
+
+    private static boolean isListed(
+            final List<KeyWrapper> keyWrappers,
+            final KeyWrapper keyWrapper
+    ) {
+        final int position = find(keyWrappers, keyWrapper.getAlias());
+        return position >= 0 && keyWrappers.get(position) == keyWrapper;
+    }
+
+    // Looked up in the fingerprints seen so far, which are kept for the keys
+    // that stay listed. Only a miss reads the public keys not seen yet, or
+    // all of them when a hit turns out to be stale. Keys that fail to load
+    // their public key are skipped.
+    public KeyWrapper getByFingerprint(final byte[] fingerprint) throws OwnException {
+        if (fingerprint.length != KeyWrapper.FINGERPRINT_SIZE) {
+            throw new OwnException("No key with this fingerprint");
+        }
+
+        final List<KeyWrapper> keyWrappers = this.keyWrappers;
+        final Long key = ByteBuffer.wrap(fingerprint).getLong();
+
+        KeyWrapper keyWrapper = keyWrappersByFingerprint.get(key);
+
+        if (keyWrapper != null && !isListed(keyWrappers, keyWrapper)) {
+            keyWrappersByFingerprint.remove(key, keyWrapper);
+            keyWrapper = null;
+        }
+
+        if (keyWrapper != null && hasFingerprint(keyWrapper, fingerprint)) return keyWrapper;
+        if (keyWrapper == null && fingerprintedKeyWrappers == keyWrappers) {
+            throw new OwnException("No key with this fingerprint");
+        }
+
+        indexFingerprints(keyWrappers, keyWrapper != null);
+
+        keyWrapper = keyWrappersByFingerprint.get(key);
+        if (keyWrapper != null && hasFingerprint(keyWrapper, fingerprint)) return keyWrapper;
+
+        throw new OwnException("No key with this fingerprint");
+    }
+
+    private static boolean hasFingerprint(final KeyWrapper keyWrapper, final byte[] fingerprint) {
+        try {
+            return keyWrapper.hasFingerprint(fingerprint);
+        } catch (OwnException e) {
+            return false; // Deleted or unreadable, can't be the one
+        }
+    }
+
+    // Adds the keys missing from the map, or all of them when an entry has
+    // turned out to be stale. Concurrent calls only repeat the same work.
+    private void indexFingerprints(final List<KeyWrapper> keyWrappers, final boolean all) {
+        final Set<KeyWrapper> known =
+                Collections.newSetFromMap(new IdentityHashMap<KeyWrapper, Boolean>());
+        if (!all) known.addAll(keyWrappersByFingerprint.values());
+
         for (KeyWrapper keyWrapper : keyWrappers) {
-            if (keyWrapper.getAlias().equals(alias)) {
-                return keyWrapper;
+            if (known.contains(keyWrapper)) continue;
+
+            try {
+                final Long key = ByteBuffer.wrap(keyWrapper.getFingerprint()).getLong();
+                keyWrappersByFingerprint.put(key, keyWrapper);
+            } catch (OwnException e) {
+                // Deleted or unreadable, looked at again by the next miss
             }
         }
 
-        throw new OwnException("Alias doesn't exist");
+        fingerprintedKeyWrappers = keyWrappers;
     }
 
     public KeyWrapper getByPosition(final int position) throws IndexOutOfBoundsException {
         return keyWrappers.get(position);
     }
 
+    // Unmodifiable, and unaffected by later changes. Positions and counts
+    // from separate calls may belong to different snapshots, so readers that
+    // need both should take the whole list instead.
+    public List<KeyWrapper> getAll() { return keyWrappers; }
+
     public void refresh() throws OwnException {
-        keyWrappers.clear();
+        synchronized (writeLock) {
+            refreshLocked();
+        }
+    }
+
+    // Wrappers of keys that stay keep their cached keys and fingerprints, as
+    // a key replaced under its alias gets a new wrapper. Change events are
+    // emitted after the new list has been published.
+    private void refreshLocked() throws OwnException {
+        final long start = REFRESH_TIMER.start();
+
+        final ArrayList<String> entryAliases = new ArrayList<>();
+
+        final long aliasesStart = ALIASES_TIMER.start();
 
         try {
             Enumeration<String> enumeration = keyStore.aliases();
             while (enumeration.hasMoreElements()) {
-                final String alias = enumeration.nextElement();
-                keyWrappers.add(new KeyWrapper(this, keyStore, alias));
+                entryAliases.add(enumeration.nextElement());
             }
+            ALIASES_TIMER.stop(aliasesStart);
         } catch (KeyStoreException e) {
             throw new OwnException("Can not fetch aliases", e);
         }
 
-        if (onRefresh != null) {
-            onRefresh.run();
+        if (keyPool != null) keyPool.reset(entryAliases);
+
+        final HashMap<String, String> entryAliasesByAlias = new HashMap<>();
+
+        for (String entryAlias : entryAliases) {
+            String alias = entryAlias;
+
+            if (keyPool != null && KeyPool.isPoolAlias(entryAlias)) {
+                alias = keyPool.getAlias(entryAlias);
+                if (alias == null) continue; // Spare keys aren't listed
+            }
+
+            entryAliasesByAlias.put(alias, entryAlias);
+        }
+
+        // Sorted by the visible alias, see the class comment.
+        final ArrayList<String> aliases = new ArrayList<>(entryAliasesByAlias.keySet());
+        Collections.sort(aliases);
+
+        final List<KeyWrapper> current = keyWrappers;
+        final ArrayList<KeyWrapper> next = new ArrayList<>(aliases.size());
+        final ArrayList<Change> changes = new ArrayList<>();
+        final ArrayList<KeyWrapper> removed = new ArrayList<>();
+
+        // Both lists are sorted, so one merge pass finds the differences.
+        // While the events are applied in order, the list is the new one up
+        // to next.size() followed by the rest of the current one.
+        int index = 0;
+
+        for (String alias : aliases) {
+            final String entryAlias = entryAliasesByAlias.get(alias);
+
+            while (index < current.size() &&
+                    current.get(index).getAlias().compareTo(alias) <= 0) {
+                final KeyWrapper keyWrapper = current.get(index++);
+
+                if (keyWrapper.getAlias().equals(alias) &&
+                        keyWrapper.getEntryAlias().equals(entryAlias)) {
+                    next.add(keyWrapper);
+                    break;
+                }
+
+                removed.add(keyWrapper);
+                changes.add(new Change(false, next.size(), keyWrapper));
+            }
+
+            if (next.size() > 0 && next.get(next.size() - 1).getAlias().equals(alias)) continue;
+
+            final KeyWrapper keyWrapper = new KeyWrapper(this, keyStore, alias, entryAlias);
+            changes.add(new Change(true, next.size(), keyWrapper));
+            next.add(keyWrapper);
+        }
+
+        while (index < current.size()) {
+            final KeyWrapper keyWrapper = current.get(index++);
+            removed.add(keyWrapper);
+            changes.add(new Change(false, next.size(), keyWrapper));
+        }
+
+        publish(next, removed, changes);
+
+        REFRESH_TIMER.stop(start);
+    }
+
+    private void insertLocked(final KeyWrapper keyWrapper) throws OwnException {
+        final List<KeyWrapper> current = keyWrappers;
+        final int position = find(current, keyWrapper.getAlias());
+
+        // Listed meanwhile by another wrapper's key store changes.
+        if (position >= 0) {
+            refreshLocked();
+            return;
+        }
+
+        final ArrayList<KeyWrapper> next = new ArrayList<>(current.size() + 1);
+        next.addAll(current);
+        next.add(-(position + 1), keyWrapper);
+
+        publish(
+                next,
+                Collections.<KeyWrapper>emptyList(),
+                Collections.singletonList(new Change(true, -(position + 1), keyWrapper)));
+    }
+
+    private void removeLocked(final KeyWrapper keyWrapper) throws OwnException {
+        final List<KeyWrapper> current = keyWrappers;
+        final int position = find(current, keyWrapper.getAlias());
+
+        // A wrapper from an earlier list, whose alias is listed with
+        // another key by now, or not at all.
+        if (position < 0 || current.get(position) != keyWrapper) {
+            refreshLocked();
+            return;
+        }
+
+        final ArrayList<KeyWrapper> next = new ArrayList<>(current);
+        next.remove(position);
+
+        publish(
+                next,
+                Collections.singletonList(keyWrapper),
+                Collections.singletonList(new Change(false, position, keyWrapper)));
+    }
+
+    private void publish(
+            final ArrayList<KeyWrapper> next,
+            final List<KeyWrapper> removed,
+            final List<Change> changes
+    ) {
+        keyWrappers = Collections.unmodifiableList(next);
+
+        for (KeyWrapper keyWrapper : removed) {
+            keyWrapper.invalidate();
+        }
+
+        if (!removed.isEmpty()) {
+            final Set<KeyWrapper> gone =
+                    Collections.newSetFromMap(new IdentityHashMap<KeyWrapper, Boolean>());
+            gone.addAll(removed);
+            keyWrappersByFingerprint.values().removeAll(gone);
+        }
+
+        for (Change change : changes) {
+            for (OnChangeListener listener : changeListeners) {
+                if (change.inserted) {
+                    listener.onInserted(change.position, change.keyWrapper);
+                } else {
+                    listener.onRemoved(change.position, change.keyWrapper);
+                }
+            }
+        }
+
+        for (Runnable listener : refreshListeners) {
+            listener.run();
         }
     }
 
     public void create(final String alias) throws OwnException, IllegalArgumentException
     {
+        create(alias, KeyAlgorithm.RSA);
+    }
+
+    public void create(final String alias, final KeyAlgorithm keyAlgorithm)
+            throws OwnException, IllegalArgumentException
+    {
+        synchronized (writeLock) {
+            final long start = CREATE_TIMER.start();
+
+            ensureCanCreate(alias);
+
+            String entryAlias = keyPool == null ? null : keyPool.claim(alias, keyAlgorithm);
+
+            if (entryAlias != null) {
+                POOL_CLAIM_COUNTER.increment();
+            } else {
+                entryAlias = alias;
+                generateKeyPair(alias, keyAlgorithm);
+            }
+
+            // A single key goes straight into the list, without a refresh.
+            insertLocked(new KeyWrapper(this, keyStore, alias, entryAlias));
+
+            CREATE_TIMER.stop(start);
+        }
+    }
+
+    public void createAll(final Collection<String> aliases) throws OwnException {
+        createAll(aliases, KeyAlgorithm.RSA, Runtime.getRuntime().availableProcessors());
+    }
+
+    // Keys are taken from the key pool first, the rest are generated on up
+    // to the given number of threads. Either all of the keys are created or
+    // none: on failure the generated keys are deleted and the claimed ones
+    // go back to the pool. There is one refresh at the end in both cases.
+    public void createAll(
+            final Collection<String> aliases,
+            final KeyAlgorithm keyAlgorithm,
+            final int parallelism
+    )
+            throws OwnException
+    {
+        synchronized (writeLock) {
+            createAllLocked(aliases, keyAlgorithm, parallelism);
+        }
+    }
+
+    private void createAllLocked(
+            final Collection<String> aliases,
+            final KeyAlgorithm keyAlgorithm,
+            final int parallelism
+    )
+            throws OwnException
+    {
+        final long start = CREATE_ALL_TIMER.start();
+
+        final HashSet<String> aliasSet = new HashSet<>();
+
+        for (String alias : aliases) {
+            ensureCanCreate(alias);
+            if (!aliasSet.add(alias)) throw new OwnException("Alias already exists");
+        }
+
+        final ArrayList<String> claimed = new ArrayList<>();
+        final ArrayList<String> generated = new ArrayList<>();
+
         try {
-            if (alias.isEmpty()) throw new OwnException("Empty alias");
-            if (keyStore.containsAlias(alias)) throw new OwnException("Alias already exists");
+            for (String alias : aliases) {
+                if (keyPool != null && keyPool.claim(alias, keyAlgorithm) != null) {
+                    POOL_CLAIM_COUNTER.increment();
+                    claimed.add(alias);
+                } else {
+                    generated.add(alias);
+                }
+            }
 
-            KeyGenParameterSpec keyGenParameterSpec = this.keyGenParameterSpec(alias);
+            Batch.run(generated.size(), parallelism, new Batch.Task() {
+                @Override
+                public void run(final int from, final int to) throws OwnException {
+                    for (int i = from; i < to; ++i) {
+                        generateKeyPair(generated.get(i), keyAlgorithm);
+                    }
+                }
+            });
+        } catch (OwnException e) {
+            rollBack(claimed, generated, e);
+            throw e;
+        } catch (RuntimeException e) {
+            rollBack(claimed, generated, e);
+            throw e;
+        } finally {
+            refreshLocked();
+        }
+
+        CREATE_ALL_TIMER.stop(start);
+    }
 
-            KeyPairGenerator keyPairGenerator =
-                    KeyPairGenerator.getInstance("RSA", keyStoreProvider);
-            keyPairGenerator.initialize(keyGenParameterSpec);
+    // The generated aliases didn't exist before, so whatever of them is in
+    // the key store now was created by the failed call. A claimed key that
+    // can't be released is deleted instead, and the refresh drops its
+    // mapping. Keys that can't be removed at all are reported as suppressed
+    // by the original failure.
+    private void rollBack(
+            final List<String> claimed,
+            final List<String> generated,
+            final Throwable failure
+    ) {
+        final ArrayList<String> entryAliases = new ArrayList<>();
 
-            KeyPair keyPair = keyPairGenerator.generateKeyPair();
-        } catch (KeyStoreException | NoSuchAlgorithmException | NoSuchProviderException | InvalidAlgorithmParameterException e) {
+        for (String alias : claimed) {
+            final String entryAlias = keyPool.getEntryAlias(alias);
+
+            try {
+                keyPool.release(alias);
+            } catch (OwnException e) {
+                entryAliases.add(entryAlias);
+            }
+        }
+
+        entryAliases.addAll(generated);
+
+        for (String entryAlias : entryAliases) {
+            try {
+                if (keyStore.containsAlias(entryAlias)) keyStore.deleteEntry(entryAlias);
+            } catch (KeyStoreException e) {
+                failure.addSuppressed(e);
+            }
+        }
+    }
+
+    public void deleteAll(final Collection<String> aliases) throws OwnException {
+        deleteAll(aliases, Runtime.getRuntime().availableProcessors());
+    }
+
+    // All aliases are checked before anything is deleted, then the keys are
+    // deleted on up to the given number of threads. There is one refresh at
+    // the end, also when some of the keys could not be deleted.
+    public void deleteAll(final Collection<String> aliases, final int parallelism)
+            throws OwnException
+    {
+        synchronized (writeLock) {
+            deleteAllLocked(aliases, parallelism);
+        }
+    }
+
+    private void deleteAllLocked(final Collection<String> aliases, final int parallelism)
+            throws OwnException
+    {
+        final long start = DELETE_ALL_TIMER.start();
+
+        final ArrayList<KeyWrapper> deleted = new ArrayList<>();
+
+        for (String alias : new LinkedHashSet<>(aliases)) {
+            deleted.add(getByAlias(alias));
+        }
+
+        try {
+            Batch.run(deleted.size(), parallelism, new Batch.Task() {
+                @Override
+                public void run(final int from, final int to) throws OwnException {
+                    for (int i = from; i < to; ++i) {
+                        deleted.get(i).deleteEntry();
+                    }
+                }
+            });
+        } finally {
+            refreshLocked();
+        }
+
+        DELETE_ALL_TIMER.stop(start);
+    }
+
+    void delete(final KeyWrapper keyWrapper) throws OwnException {
+        synchronized (writeLock) {
+            keyWrapper.deleteEntry();
+            if (keyPool != null) keyPool.forget(keyWrapper.getAlias());
+            removeLocked(keyWrapper);
+        }
+    }
+
+    public boolean needsKeyPoolRefill() {
+        return keyPool != null && keyPool.needsRefill();
+    }
+
+    // Generates a single spare key, so that callers can interleave other
+    // work between the slow generations of a full refill. It doesn't
+    // change the key list, so it runs without blocking the writers.
+    public void refillKeyPool() throws OwnException {
+        if (!needsKeyPoolRefill()) return;
+
+        final String entryAlias = keyPool.newEntryAlias();
+        generateKeyPair(entryAlias, keyPool.getKeyAlgorithm());
+        keyPool.addSpare(entryAlias);
+    }
+
+    private void ensureCanCreate(final String alias) throws OwnException {
+        try {
+            if (alias.isEmpty()) throw new OwnException("Empty alias");
+            if (KeyPool.isPoolAlias(alias)) throw new OwnException("Reserved alias");
+            if (find(keyWrappers, alias) >= 0) throw new OwnException("Alias already exists");
+            // The key store is still asked because another wrapper may have
+            // created the alias since our last refresh, and generating a key
+            // under an existing alias would silently replace it.
+            if (keyStore.containsAlias(alias)) throw new OwnException("Alias already exists");
+        } catch (KeyStoreException e) {
             throw new OwnException("Can not generate key", e);
         }
+    }
 
-        refresh();
+    private void generateKeyPair(final String entryAlias, final KeyAlgorithm keyAlgorithm)
+            throws OwnException
+    {
+        final long start = GENERATE_TIMER.start();
+        keyStoreProvider.generateKeyPair(keyStore, entryAlias, keyAlgorithm);
+        GENERATE_TIMER.stop(start);
     }
 
-    private KeyGenParameterSpec keyGenParameterSpec(final String alias) {
-        return new KeyGenParameterSpec.Builder(
-                alias,
-                KeyProperties.PURPOSE_ENCRYPT |
-                        KeyProperties.PURPOSE_DECRYPT |
-                        KeyProperties.PURPOSE_SIGN |
-                        KeyProperties.PURPOSE_VERIFY |
-                        KeyProperties.PURPOSE_WRAP_KEY)
-                .setAttestationChallenge(null)
-                .setDigests(
-                        KeyProperties.DIGEST_SHA224,
-                        KeyProperties.DIGEST_SHA256,
-                        KeyProperties.DIGEST_SHA384,
-                        KeyProperties.DIGEST_SHA512)
-                .setEncryptionPaddings(
-                        KeyProperties.ENCRYPTION_PADDING_RSA_OAEP,
-                        KeyProperties.ENCRYPTION_PADDING_RSA_PKCS1)
-                .setIsStrongBoxBacked(false) // Because it isn't available
-                .setKeySize(2048)
-                .setRandomizedEncryptionRequired(true)
-                .setSignaturePaddings(
-                        KeyProperties.SIGNATURE_PADDING_RSA_PKCS1,
-                        KeyProperties.SIGNATURE_PADDING_RSA_PSS)
-                .setUnlockedDeviceRequired(false)
-                .setUserAuthenticationRequired(false)
-                .setUserConfirmationRequired(false)
-                .setUserPresenceRequired(false)
-                .build();
+    private static final class Change {
+        private final boolean inserted;
+        private final int position;
+        private final KeyWrapper keyWrapper;
+
+        private Change(final boolean inserted, final int position, final KeyWrapper keyWrapper) {
+            this.inserted = inserted;
+            this.position = position;
+            this.keyWrapper = keyWrapper;
+        }
+    }
 
+    public interface OnChangeListener {
+        void onInserted(int position, KeyWrapper keyWrapper);
+        void onRemoved(int position, KeyWrapper keyWrapper);
     }
 }
@@ -1,26 +1,83 @@
 package com.kotovalexarian.signanest.key_store;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.security.InvalidKeyException;
+import java.security.KeyFactory;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.Signature;
 import java.security.SignatureException;
 import java.security.UnrecoverableEntryException;
+import java.security.cert.Certificate;
+import java.security.spec.InvalidKeySpecException;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.List;
 
 import javax.crypto.BadPaddingException;
 import javax.crypto.Cipher;
 import javax.crypto.IllegalBlockSizeException;
-import javax.crypto.NoSuchPaddingException;
+import javax.crypto.ShortBufferException;
 
 public class KeyWrapper {
+    // Leading bytes of the SHA-256 digest of the encoded public key.
+    public static final int FINGERPRINT_SIZE = 8;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final String CIPHER_TRANSFORMATION = "RSA/ECB/PKCS1Padding";
+
+    // Shared by all keys, one operation per core holds its buffers at once.
+    private static final FileCipher STREAM_CIPHER = new FileCipher(
+            FileCipher.DEFAULT_CHUNK_SIZE,
+            Runtime.getRuntime().availableProcessors());
+
+    private static final Metrics.Timer SIGN_TIMER = Metrics.timer("key.sign");
+    private static final Metrics.Timer VERIFY_TIMER = Metrics.timer("key.verify");
+    private static final Metrics.Timer ENCRYPT_TIMER = Metrics.timer("key.encrypt");
+    private static final Metrics.Timer DECRYPT_TIMER = Metrics.timer("key.decrypt");
+    private static final Metrics.Timer ENCRYPT_STREAM_TIMER = Metrics.timer("key.encrypt.stream");
+    private static final Metrics.Timer DECRYPT_STREAM_TIMER = Metrics.timer("key.decrypt.stream");
+    private static final Metrics.Timer SIGN_ALL_TIMER = Metrics.timer("key.signAll");
+    private static final Metrics.Timer VERIFY_ALL_TIMER = Metrics.timer("key.verifyAll");
+    private static final Metrics.Timer DELETE_TIMER = Metrics.timer("key.delete");
+    private static final Metrics.Timer BASE64_TIMER = Metrics.timer("phase.base64");
+    private static final Metrics.Timer CONTAINS_ALIAS_TIMER =
+            Metrics.timer("phase.keystore.containsAlias");
+    private static final Metrics.Timer GET_ENTRY_TIMER = Metrics.timer("phase.keystore.getEntry");
+    private static final Metrics.Timer GET_CERTIFICATE_TIMER =
+            Metrics.timer("phase.keystore.getCertificate");
+
     private final KeyStoreWrapper keyStoreWrapper;
+    private final KeyStoreProvider keyStoreProvider;
     private final KeyStore keyStore;
     private final String alias;
+    // Differs from the alias for keys claimed from a KeyPool.
+    private final String entryAlias;
+
+    // Fields are volatile, as a refresh or delete on another thread resets
+    // them while operations are running.
+    private volatile boolean deleted = false;
+
+    // Cached until delete() or a key store refresh, so that repeated
+    // operations don't query the key store for every call.
+    private volatile KeyStore.PrivateKeyEntry privateKeyEntry = null;
 
-    private boolean deleted = false;
+    // Copy of the public key in the default software provider. Verification
+    // and encryption only need it, so they run without key store IPC and
+    // may be called from any number of threads at once.
+    private volatile PublicKey publicKey = null;
+    private volatile byte[] fingerprint = null;
 
     public KeyWrapper(
             final KeyStoreWrapper keyStoreWrapper,
@@ -28,21 +85,44 @@ public class KeyWrapper {
             final String alias
     )
             throws OwnException
+    {
+        this(keyStoreWrapper, keyStore, alias, alias);
+    }
+
+    KeyWrapper(
+            final KeyStoreWrapper keyStoreWrapper,
+            final KeyStore keyStore,
+            final String alias,
+            final String entryAlias
+    )
+            throws OwnException
     {
         if (alias.isEmpty()) throw new OwnException("Empty alias");
+        // The backend and deletion go through the wrapper.
+        if (keyStoreWrapper == null) throw new OwnException("No key store wrapper");
 
         this.keyStoreWrapper = keyStoreWrapper;
+        this.keyStoreProvider = keyStoreWrapper.getKeyStoreProvider();
         this.keyStore = keyStore;
         this.alias = alias;
+        this.entryAlias = entryAlias;
     }
 
     public String getAlias() { return alias; }
 
+    String getEntryAlias() { return entryAlias; }
+
     public void ensureExists() throws OwnException {
         if (deleted) throw new OwnException("Alias was deleted");
+        if (privateKeyEntry != null || publicKey != null) return;
+
+        final long start = CONTAINS_ALIAS_TIMER.start();
 
         try {
-            if (!keyStore.containsAlias(alias)) throw new OwnException("Alias doesn't exist");
+            final boolean exists = keyStore.containsAlias(entryAlias);
+            CONTAINS_ALIAS_TIMER.stop(start);
+
+            if (!exists) throw new OwnException("Alias doesn't exist");
         } catch (KeyStoreException e) {
             throw new OwnException("Key store doesn't work", e);
         }
@@ -53,34 +133,116 @@ public class KeyWrapper {
     }
 
     public String getAlgorithm() throws OwnException {
-        return this.privateKeyEntry().getPrivateKey().getAlgorithm();
+        return this.publicKey().getAlgorithm();
+    }
+
+    public KeyAlgorithm getKeyAlgorithm() throws OwnException {
+        return KeyAlgorithm.of(getAlgorithm());
+    }
+
+    public PublicKey getPublicKey() throws OwnException {
+        ensureExists();
+
+        return publicKey();
+    }
+
+    // Identifies the key in envelopes, see Envelope.
+    public byte[] getFingerprint() throws OwnException {
+        return fingerprint().clone();
+    }
+
+    boolean hasFingerprint(final byte[] otherFingerprint) throws OwnException {
+        return MessageDigest.isEqual(fingerprint(), otherFingerprint);
+    }
+
+    public KeyMetadata getMetadata() throws OwnException {
+        ensureExists();
+
+        return keyStoreProvider.getMetadata(
+                keyStore,
+                alias,
+                entryAlias,
+                this.privateKeyEntry().getPrivateKey());
     }
 
     public void delete() throws OwnException {
+        final long start = DELETE_TIMER.start();
+
+        keyStoreWrapper.delete(this);
+
+        DELETE_TIMER.stop(start);
+    }
+
+    // Deletes the key without refreshing the key store wrapper, so that
+    // many keys can be deleted with a single refresh.
+    void deleteEntry() throws OwnException {
         ensureExists();
 
         try {
             deleted = true;
-            keyStore.deleteEntry(alias);
-            keyStoreWrapper.refresh();
+            privateKeyEntry = null;
+            publicKey = null;
+            fingerprint = null;
+            keyStore.deleteEntry(entryAlias);
         } catch (KeyStoreException e) {
             throw new OwnException("Key store failure", e);
         }
     }
 
+    // The String methods are a convenience layer over the binary ones:
+    // texts are UTF-8 encoded, cipher texts and signatures are Base64.
+    // Empty input is rejected by the binary methods.
     public String encrypt(final String plainText) throws OwnException {
-        ensureExists();
+        final byte[] result = encrypt(plainText.getBytes(StandardCharsets.UTF_8));
+
+        final long start = BASE64_TIMER.start();
+        final String encoded = Base64.getEncoder().encodeToString(result);
+        BASE64_TIMER.stop(start);
+
+        return encoded;
+    }
+
+    public String decrypt(final String cipherText) throws OwnException {
+        final long start = BASE64_TIMER.start();
+        final byte[] decoded = Base64.getDecoder().decode(cipherText);
+        BASE64_TIMER.stop(start);
+
+        final byte[] result = decrypt(decoded);
+
+        return new String(result, StandardCharsets.UTF_8);
+    }
+
+    public byte[] encrypt(final byte[] plainText) throws OwnException {
+        if (plainText.length == 0) throw new OwnException("Empty plain text");
+
+        final long start = ENCRYPT_TIMER.start();
+        final Cipher cipher = encrypter();
 
         try {
-            if (plainText.isEmpty()) throw new OwnException("Empty plain text");
+            final byte[] result = cipher.doFinal(plainText);
+            EnginePool.recycle(cipher);
+            ENCRYPT_TIMER.stop(start);
+
+            return result;
+        } catch (BadPaddingException e) {
+            throw new OwnException("Bad padding", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new OwnException("Illegal block size", e);
+        }
+    }
 
-            final KeyStore.PrivateKeyEntry privateKeyEntry = this.privateKeyEntry();
-            final Cipher cipher = this.cipher();
-            cipher.init(Cipher.ENCRYPT_MODE, privateKeyEntry.getCertificate().getPublicKey());
+    public byte[] decrypt(final byte[] cipherText) throws OwnException {
+        if (cipherText.length == 0) throw new OwnException("Empty cipher text");
 
-            return Base64.getEncoder().encodeToString(cipher.doFinal(plainText.getBytes(StandardCharsets.UTF_8)));
-        } catch (InvalidKeyException e) {
-            throw new OwnException("Invalid key", e);
+        final long start = DECRYPT_TIMER.start();
+        final Cipher cipher = decrypter();
+
+        try {
+            final byte[] result = cipher.doFinal(cipherText);
+            EnginePool.recycle(cipher);
+            DECRYPT_TIMER.stop(start);
+
+            return result;
         } catch (BadPaddingException e) {
             throw new OwnException("Bad padding", e);
         } catch (IllegalBlockSizeException e) {
@@ -88,19 +250,47 @@ public class KeyWrapper {
         }
     }
 
-    public String decrypt(final String cipherText) throws OwnException {
-        ensureExists();
+    // Consumes the plain text and writes getBlockSize() bytes at most into
+    // the cipher text buffer. Returns the number of bytes written.
+    public int encrypt(final ByteBuffer plainText, final ByteBuffer cipherText)
+            throws OwnException
+    {
+        if (!plainText.hasRemaining()) throw new OwnException("Empty plain text");
+
+        final long start = ENCRYPT_TIMER.start();
+        final Cipher cipher = encrypter();
 
         try {
-            if (cipherText.isEmpty()) throw new OwnException("Empty cipher text");
+            final int result = cipher.doFinal(plainText, cipherText);
+            EnginePool.recycle(cipher);
+            ENCRYPT_TIMER.stop(start);
+
+            return result;
+        } catch (ShortBufferException e) {
+            throw new OwnException("Short buffer", e);
+        } catch (BadPaddingException e) {
+            throw new OwnException("Bad padding", e);
+        } catch (IllegalBlockSizeException e) {
+            throw new OwnException("Illegal block size", e);
+        }
+    }
 
-            final KeyStore.PrivateKeyEntry privateKeyEntry = this.privateKeyEntry();
-            final Cipher cipher = this.cipher();
-            cipher.init(Cipher.DECRYPT_MODE, privateKeyEntry.getPrivateKey());
+    public int decrypt(final ByteBuffer cipherText, final ByteBuffer plainText)
+            throws OwnException
+    {
+        if (!cipherText.hasRemaining()) throw new OwnException("Empty cipher text");
+
+        final long start = DECRYPT_TIMER.start();
+        final Cipher cipher = decrypter();
+
+        try {
+            final int result = cipher.doFinal(cipherText, plainText);
+            EnginePool.recycle(cipher);
+            DECRYPT_TIMER.stop(start);
 
-            return new String(cipher.doFinal(Base64.getDecoder().decode(cipherText)), StandardCharsets.UTF_8);
-        } catch (InvalidKeyException e) {
-            throw new OwnException("Invalid key", e);
+            return result;
+        } catch (ShortBufferException e) {
+            throw new OwnException("Short buffer", e);
         } catch (BadPaddingException e) {
             throw new OwnException("Bad padding", e);
         } catch (IllegalBlockSizeException e) {
@@ -108,23 +298,170 @@ public class KeyWrapper {
         }
     }
 
-    public String sign(final String textString) throws OwnException {
+    // Size of a cipher text block, and the most that decryption can return.
+    public int getBlockSize() throws OwnException {
+        ensureEncryptionSupported();
+
+        return getKeyAlgorithm().getKeySize() / 8;
+    }
+
+    public int getSignatureSize() throws OwnException {
+        return getKeyAlgorithm().getSignatureSize();
+    }
+
+    // Same chunked format as FileCipher, so decryption holds one chunk at
+    // a time whatever the size of the stream.
+    public void encrypt(final InputStream plainText, final OutputStream cipherText)
+            throws OwnException
+    {
+        final long start = ENCRYPT_STREAM_TIMER.start();
+
         ensureExists();
+        ensureEncryptionSupported();
+
+        STREAM_CIPHER.encrypt(
+                this,
+                Channels.newChannel(plainText),
+                Channels.newChannel(cipherText));
 
         try {
-            if (textString.isEmpty()) throw new OwnException("Empty text");
+            cipherText.flush();
+        } catch (IOException e) {
+            throw new OwnException("Can not write cipher text", e);
+        }
+
+        ENCRYPT_STREAM_TIMER.stop(start);
+    }
 
-            final KeyStore.PrivateKeyEntry privateKeyEntry = this.privateKeyEntry();
+    public void decrypt(final InputStream cipherText, final OutputStream plainText)
+            throws OwnException
+    {
+        final long start = DECRYPT_STREAM_TIMER.start();
 
-            final Signature signature = Signature.getInstance("SHA256withRSA");
-            signature.initSign(privateKeyEntry.getPrivateKey());
-            signature.update(textString.getBytes(StandardCharsets.UTF_8));
+        ensureExists();
+        ensureEncryptionSupported();
 
-            return Base64.getEncoder().encodeToString(signature.sign());
-        } catch (NoSuchAlgorithmException e) {
-            throw new OwnException("No such algorithm", e);
-        } catch (InvalidKeyException e) {
-            throw new OwnException("Invalid key", e);
+        STREAM_CIPHER.decrypt(
+                this,
+                Channels.newChannel(cipherText),
+                Channels.newChannel(plainText));
+
+        try {
+            plainText.flush();
+        } catch (IOException e) {
+            throw new OwnException("Can not write plain text", e);
+        }
+
+        DECRYPT_STREAM_TIMER.stop(start);
+    }
+
+    public String sign(final String textString) throws OwnException {
+        final byte[] text = textString.getBytes(StandardCharsets.UTF_8);
+        final byte[] result = sign(ByteBuffer.wrap(text));
+
+        final long start = BASE64_TIMER.start();
+        final String encoded = Base64.getEncoder().encodeToString(result);
+        BASE64_TIMER.stop(start);
+
+        return encoded;
+    }
+
+    public byte[] sign(final byte[] text) throws OwnException {
+        return sign(ByteBuffer.wrap(text));
+    }
+
+    // Writes getSignatureSize() bytes into the signature buffer. The engine
+    // signs straight into heap buffers, except for EC signatures, which
+    // have to be converted from DER first.
+    public int sign(final ByteBuffer text, final ByteBuffer signatureBuffer)
+            throws OwnException
+    {
+        if (!text.hasRemaining()) throw new OwnException("Empty text");
+
+        final KeyAlgorithm keyAlgorithm = getKeyAlgorithm();
+
+        // Checked before the text is consumed and the private key is used.
+        if (signatureBuffer.remaining() < keyAlgorithm.getSignatureSize()) {
+            throw new OwnException("Short buffer");
+        }
+
+        if (!signatureBuffer.hasArray() || !keyAlgorithm.usesEngineSignatureFormat()) {
+            final byte[] result = sign(text);
+            signatureBuffer.put(result);
+            return result.length;
+        }
+
+        final long start = SIGN_TIMER.start();
+        final Signature signature = signer();
+
+        try {
+            signature.update(text);
+
+            final int length = signature.sign(
+                    signatureBuffer.array(),
+                    signatureBuffer.arrayOffset() + signatureBuffer.position(),
+                    signatureBuffer.remaining());
+            EnginePool.recycle(signature);
+            signatureBuffer.position(signatureBuffer.position() + length);
+            SIGN_TIMER.stop(start);
+
+            return length;
+        } catch (SignatureException e) {
+            throw new OwnException("Signature failure", e);
+        }
+    }
+
+    public byte[] sign(final ByteBuffer text) throws OwnException {
+        if (!text.hasRemaining()) throw new OwnException("Empty text");
+
+        final long start = SIGN_TIMER.start();
+        final Signature signature = signer();
+
+        try {
+            signature.update(text);
+
+            final byte[] engineResult = signature.sign();
+            EnginePool.recycle(signature);
+            final byte[] result = getKeyAlgorithm().fromEngineSignature(engineResult);
+            SIGN_TIMER.stop(start);
+
+            return result;
+        } catch (SignatureException e) {
+            throw new OwnException("Signature failure", e);
+        }
+    }
+
+    public byte[] sign(final InputStream text) throws OwnException {
+        final long start = SIGN_TIMER.start();
+        final Signature signature = signer();
+
+        try {
+            update(signature, text);
+
+            final byte[] engineResult = signature.sign();
+            EnginePool.recycle(signature);
+            final byte[] result = getKeyAlgorithm().fromEngineSignature(engineResult);
+            SIGN_TIMER.stop(start);
+
+            return result;
+        } catch (SignatureException e) {
+            throw new OwnException("Signature failure", e);
+        }
+    }
+
+    public byte[] sign(final ReadableByteChannel text) throws OwnException {
+        final long start = SIGN_TIMER.start();
+        final Signature signature = signer();
+
+        try {
+            update(signature, text);
+
+            final byte[] engineResult = signature.sign();
+            EnginePool.recycle(signature);
+            final byte[] result = getKeyAlgorithm().fromEngineSignature(engineResult);
+            SIGN_TIMER.stop(start);
+
+            return result;
         } catch (SignatureException e) {
             throw new OwnException("Signature failure", e);
         }
@@ -133,53 +470,374 @@ public class KeyWrapper {
     public boolean verify(final String textString, final String signatureString)
             throws OwnException
     {
-        ensureExists();
+        final byte[] text = textString.getBytes(StandardCharsets.UTF_8);
+
+        final long start = BASE64_TIMER.start();
+        final byte[] signature = Base64.getDecoder().decode(signatureString);
+        BASE64_TIMER.stop(start);
+
+        return verify(ByteBuffer.wrap(text), signature);
+    }
+
+    public boolean verify(final byte[] text, final byte[] signatureBytes) throws OwnException {
+        return verify(ByteBuffer.wrap(text), signatureBytes);
+    }
+
+    // Heap buffers are verified in place. Direct buffers and EC signatures,
+    // which are converted to DER, are copied.
+    public boolean verify(final ByteBuffer text, final ByteBuffer signatureBuffer)
+            throws OwnException
+    {
+        if (!text.hasRemaining()) throw new OwnException("Empty text");
+        if (!signatureBuffer.hasRemaining()) throw new OwnException("Empty signature");
+
+        if (!signatureBuffer.hasArray() || !getKeyAlgorithm().usesEngineSignatureFormat()) {
+            final byte[] signatureBytes = new byte[signatureBuffer.remaining()];
+            signatureBuffer.get(signatureBytes);
+
+            return verify(text, signatureBytes);
+        }
+
+        final long start = VERIFY_TIMER.start();
+        final Signature signature = verifier();
 
         try {
-            if (textString.isEmpty()) throw new OwnException("Empty text");
-            if (signatureString.isEmpty()) throw new OwnException("Empty signature");
+            signature.update(text);
+
+            final boolean result = signature.verify(
+                    signatureBuffer.array(),
+                    signatureBuffer.arrayOffset() + signatureBuffer.position(),
+                    signatureBuffer.remaining());
+            EnginePool.recycle(signature);
+            signatureBuffer.position(signatureBuffer.limit());
+            VERIFY_TIMER.stop(start);
 
-            final KeyStore.PrivateKeyEntry privateKeyEntry = this.privateKeyEntry();
+            return result;
+        } catch (SignatureException e) {
+            throw new OwnException("Signature failure", e);
+        }
+    }
 
-            final Signature signature = Signature.getInstance("SHA256withRSA");
-            signature.initVerify(privateKeyEntry.getCertificate());
-            signature.update(textString.getBytes(StandardCharsets.UTF_8));
+    public boolean verify(final ByteBuffer text, final byte[] signatureBytes)
+            throws OwnException
+    {
+        if (!text.hasRemaining()) throw new OwnException("Empty text");
+        if (signatureBytes.length == 0) throw new OwnException("Empty signature");
 
-            return signature.verify(Base64.getDecoder().decode(signatureString));
-        } catch (NoSuchAlgorithmException e) {
-            throw new OwnException("No such algorithm", e);
-        } catch (InvalidKeyException e) {
-            throw new OwnException("Invalid key", e);
+        final long start = VERIFY_TIMER.start();
+        final Signature signature = verifier();
+
+        try {
+            signature.update(text);
+
+            final boolean result =
+                    signature.verify(getKeyAlgorithm().toEngineSignature(signatureBytes));
+            EnginePool.recycle(signature);
+            VERIFY_TIMER.stop(start);
+
+            return result;
         } catch (SignatureException e) {
             throw new OwnException("Signature failure", e);
         }
     }
 
-    private KeyStore.PrivateKeyEntry privateKeyEntry() throws OwnException {
+    public boolean verify(final InputStream text, final byte[] signatureBytes)
+            throws OwnException
+    {
+        final long start = VERIFY_TIMER.start();
+        final Signature signature = verifier();
+
         try {
-            KeyStore.Entry entry = keyStore.getEntry(alias, null);
+            update(signature, text);
 
-            if (!(entry instanceof KeyStore.PrivateKeyEntry)) {
-                throw new OwnException("Is not a private key");
+            final boolean result =
+                    signature.verify(getKeyAlgorithm().toEngineSignature(signatureBytes));
+            EnginePool.recycle(signature);
+            VERIFY_TIMER.stop(start);
+
+            return result;
+        } catch (SignatureException e) {
+            throw new OwnException("Signature failure", e);
+        }
+    }
+
+    public boolean verify(final ReadableByteChannel text, final byte[] signatureBytes)
+            throws OwnException
+    {
+        final long start = VERIFY_TIMER.start();
+        final Signature signature = verifier();
+
+        try {
+            update(signature, text);
+
+            final boolean result =
+                    signature.verify(getKeyAlgorithm().toEngineSignature(signatureBytes));
+            EnginePool.recycle(signature);
+            VERIFY_TIMER.stop(start);
+
+            return result;
+        } catch (SignatureException e) {
+            throw new OwnException("Signature failure", e);
+        }
+    }
+
+    public byte[][] signAll(final List<byte[]> texts) throws OwnException {
+        return signAll(texts, 1);
+    }
+
+    // Texts are split into one contiguous slice per thread, and each slice
+    // is signed with a single engine initialized once.
+    public byte[][] signAll(final List<byte[]> texts, final int parallelism)
+            throws OwnException
+    {
+        final long start = SIGN_ALL_TIMER.start();
+
+        ensureExists();
+
+        final PrivateKey privateKey = privateKeyEntry().getPrivateKey();
+        final KeyAlgorithm keyAlgorithm = getKeyAlgorithm();
+        final byte[][] signatures = new byte[texts.size()][];
+
+        Batch.run(texts.size(), parallelism, new Batch.Task() {
+            @Override
+            public void run(final int from, final int to) throws OwnException {
+                final Signature signature =
+                        EnginePool.signer(keyAlgorithm.getSignatureAlgorithm(), privateKey);
+
+                try {
+                    for (int i = from; i < to; ++i) {
+                        signature.update(texts.get(i));
+                        signatures[i] = keyAlgorithm.fromEngineSignature(signature.sign());
+                    }
+                } catch (SignatureException e) {
+                    throw new OwnException("Signature failure", e);
+                }
+
+                EnginePool.recycle(signature);
+            }
+        });
+
+        SIGN_ALL_TIMER.stop(start);
+
+        return signatures;
+    }
+
+    public boolean[] verifyAll(final List<byte[]> texts, final List<byte[]> signatures)
+            throws OwnException
+    {
+        return verifyAll(texts, signatures, 1);
+    }
+
+    public boolean[] verifyAll(
+            final List<byte[]> texts,
+            final List<byte[]> signatures,
+            final int parallelism
+    )
+            throws OwnException
+    {
+        ensureExists();
+
+        if (texts.size() != signatures.size()) {
+            throw new OwnException("Different number of texts and signatures");
+        }
+
+        final long start = VERIFY_ALL_TIMER.start();
+
+        final PublicKey publicKey = publicKey();
+        final KeyAlgorithm keyAlgorithm = getKeyAlgorithm();
+        final boolean[] results = new boolean[texts.size()];
+
+        Batch.run(texts.size(), parallelism, new Batch.Task() {
+            @Override
+            public void run(final int from, final int to) throws OwnException {
+                verifyRange(keyAlgorithm, publicKey, texts, signatures, results, from, to);
+            }
+        });
+
+        VERIFY_ALL_TIMER.stop(start);
+
+        return results;
+    }
+
+    // Verifies items from..to with one engine of the calling thread. Shared
+    // by verifyAll and BulkVerifier.
+    static void verifyRange(
+            final KeyAlgorithm keyAlgorithm,
+            final PublicKey publicKey,
+            final List<byte[]> texts,
+            final List<byte[]> signatures,
+            final boolean[] results,
+            final int from,
+            final int to
+    )
+            throws OwnException
+    {
+        final String signatureAlgorithm = keyAlgorithm.getSignatureAlgorithm();
+
+        Signature signature = EnginePool.verifier(signatureAlgorithm, publicKey);
+
+        for (int i = from; i < to; ++i) {
+            try {
+                signature.update(texts.get(i));
+                results[i] = signature.verify(keyAlgorithm.toEngineSignature(signatures.get(i)));
+            } catch (SignatureException e) {
+                // A malformed signature fails only its own item, but
+                // leaves the engine in an unknown state.
+                results[i] = false;
+                signature = EnginePool.verifier(signatureAlgorithm, publicKey);
+            }
+        }
+
+        EnginePool.recycle(signature);
+    }
+
+    private void ensureEncryptionSupported() throws OwnException {
+        if (!getKeyAlgorithm().isEncryptionSupported()) {
+            throw new OwnException("Key algorithm doesn't support encryption");
+        }
+    }
+
+    private Cipher encrypter() throws OwnException {
+        ensureExists();
+        ensureEncryptionSupported();
+
+        return EnginePool.cipher(CIPHER_TRANSFORMATION, Cipher.ENCRYPT_MODE, publicKey(), null);
+    }
+
+    private Cipher decrypter() throws OwnException {
+        ensureExists();
+        ensureEncryptionSupported();
+
+        return EnginePool.cipher(
+                CIPHER_TRANSFORMATION,
+                Cipher.DECRYPT_MODE,
+                privateKeyEntry().getPrivateKey(),
+                null);
+    }
+
+    private Signature signer() throws OwnException {
+        ensureExists();
+
+        final KeyStore.PrivateKeyEntry privateKeyEntry = this.privateKeyEntry();
+
+        return EnginePool.signer(
+                getKeyAlgorithm().getSignatureAlgorithm(),
+                privateKeyEntry.getPrivateKey());
+    }
+
+    private Signature verifier() throws OwnException {
+        ensureExists();
+
+        return EnginePool.verifier(getKeyAlgorithm().getSignatureAlgorithm(), publicKey());
+    }
+
+    // Input is fed in fixed-size chunks so memory use doesn't depend on its length.
+    private static void update(final Signature signature, final InputStream text)
+            throws OwnException, SignatureException
+    {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        try {
+            int count;
+            while ((count = text.read(buffer)) != -1) {
+                signature.update(buffer, 0, count);
+            }
+        } catch (IOException e) {
+            throw new OwnException("Can not read text", e);
+        }
+    }
+
+    private static void update(final Signature signature, final ReadableByteChannel text)
+            throws OwnException, SignatureException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+        try {
+            while (text.read(buffer) != -1) {
+                buffer.flip();
+                signature.update(buffer);
+                buffer.clear();
             }
+        } catch (IOException e) {
+            throw new OwnException("Can not read text", e);
+        }
+    }
+
+    void invalidate() {
+        privateKeyEntry = null;
+        publicKey = null;
+        fingerprint = null;
+    }
+
+    private byte[] fingerprint() throws OwnException {
+        final byte[] cached = fingerprint;
+        if (cached != null) return cached;
+
+        ensureExists();
+
+        final byte[] result = Arrays.copyOf(
+                KeyIndex.digest(publicKey().getEncoded()),
+                FINGERPRINT_SIZE);
+
+        fingerprint = result;
+
+        return result;
+    }
+
+    // Only the certificate is read from the key store, and the key is
+    // decoded again by the software provider, so that engines initialized
+    // with it never go through the key store.
+    private PublicKey publicKey() throws OwnException {
+        final PublicKey cached = publicKey;
+        if (cached != null) return cached;
+
+        final long start = GET_CERTIFICATE_TIMER.start();
+
+        try {
+            final Certificate certificate = keyStore.getCertificate(entryAlias);
+            GET_CERTIFICATE_TIMER.stop(start);
+            if (certificate == null) throw new OwnException("Alias doesn't exist");
+
+            final PublicKey keyStorePublicKey = certificate.getPublicKey();
+            final PublicKey result = KeyFactory.getInstance(keyStorePublicKey.getAlgorithm())
+                    .generatePublic(new X509EncodedKeySpec(keyStorePublicKey.getEncoded()));
+
+            publicKey = result;
 
-            return (KeyStore.PrivateKeyEntry)entry;
+            return result;
         } catch (KeyStoreException e) {
             throw new OwnException("Key store failure", e);
         } catch (NoSuchAlgorithmException e) {
             throw new OwnException("No such algorithm", e);
-        } catch (UnrecoverableEntryException e) {
-            throw new OwnException("Unrecoverable entry", e);
+        } catch (InvalidKeySpecException e) {
+            throw new OwnException("Invalid key spec", e);
         }
     }
 
-    private Cipher cipher() throws OwnException {
+    private KeyStore.PrivateKeyEntry privateKeyEntry() throws OwnException {
+        final KeyStore.PrivateKeyEntry cached = privateKeyEntry;
+        if (cached != null) return cached;
+
+        final long start = GET_ENTRY_TIMER.start();
+
         try {
-            return Cipher.getInstance("RSA/ECB/PKCS1Padding");
+            KeyStore.Entry entry = keyStore.getEntry(entryAlias, null);
+            GET_ENTRY_TIMER.stop(start);
+
+            if (!(entry instanceof KeyStore.PrivateKeyEntry)) {
+                throw new OwnException("Is not a private key");
+            }
+
+            final KeyStore.PrivateKeyEntry result = (KeyStore.PrivateKeyEntry)entry;
+            privateKeyEntry = result;
+
+            return result;
+        } catch (KeyStoreException e) {
+            throw new OwnException("Key store failure", e);
         } catch (NoSuchAlgorithmException e) {
             throw new OwnException("No such algorithm", e);
-        } catch (NoSuchPaddingException e) {
-            throw new OwnException("No such padding", e);
+        } catch (UnrecoverableEntryException e) {
+            throw new OwnException("Unrecoverable entry", e);
         }
     }
 }
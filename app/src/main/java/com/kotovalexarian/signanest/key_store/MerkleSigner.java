@@ -0,0 +1,420 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+// Signs large files by their Merkle tree root instead of streaming them
+// through one Signature engine. Chunks are hashed in parallel on a
+// fork-join pool, and the key store is used once, for the root. The
+// resulting manifest holds every chunk hash, so once its signature has
+// been checked any single chunk can be verified on its own.
+//
+// Leaves are SHA-256(0x00 || chunk), nodes SHA-256(0x01 || left || right),
+// and a node without a sibling is carried up as is. The signed message is
+// magic, version, chunk size, file length and root, so that neither can be
+// changed without breaking the signature.
+public final class MerkleSigner {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int MAGIC = 0x534E4D54; // "SNMT"
+    private static final byte VERSION = 1;
+
+    private static final String DIGEST_ALGORITHM = "SHA-256";
+    private static final int HASH_SIZE = 32;
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    // Chunks hashed one after another by a task, with one buffer.
+    private static final int MIN_SLICE_SIZE = 4;
+
+    private static final Metrics.Timer HASH_TIMER = Metrics.timer("merkle.hash");
+    private static final Metrics.Counter CHUNK_COUNTER = Metrics.counter("merkle.chunks");
+
+    // One read buffer per worker thread, reused by every slice it hashes and
+    // grown for larger chunks. hash() doesn't fork or join, so a worker
+    // can't start another slice while it uses its buffer.
+    private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<>();
+
+    private final ForkJoinPool pool;
+    private final int chunkSize;
+
+    public MerkleSigner() {
+        this(DEFAULT_CHUNK_SIZE);
+    }
+
+    public MerkleSigner(final int chunkSize) {
+        this(SharedForkJoinPool.get(), chunkSize);
+    }
+
+    public MerkleSigner(final ForkJoinPool pool, final int chunkSize) {
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    public int getChunkSize() { return chunkSize; }
+
+    public Manifest sign(final KeyWrapper keyWrapper, final File file) throws OwnException {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return sign(keyWrapper, channel);
+        } catch (IOException e) {
+            throw new OwnException("Can not open file", e);
+        }
+    }
+
+    public Manifest sign(final KeyWrapper keyWrapper, final FileChannel file)
+            throws OwnException
+    {
+        final long length = size(file);
+        final byte[][] leaves = hashChunks(file, chunkSize, length);
+        final byte[] root = root(leaves);
+
+        final byte[] signature = keyWrapper.sign(signedMessage(chunkSize, length, root));
+
+        return new Manifest(chunkSize, length, leaves, signature);
+    }
+
+    public boolean verify(final KeyWrapper keyWrapper, final File file, final Manifest manifest)
+            throws OwnException
+    {
+        try (FileChannel channel = new FileInputStream(file).getChannel()) {
+            return verify(keyWrapper, channel, manifest);
+        } catch (IOException e) {
+            throw new OwnException("Can not open file", e);
+        }
+    }
+
+    // Hashes the whole file in parallel and checks it against the manifest.
+    public boolean verify(
+            final KeyWrapper keyWrapper,
+            final FileChannel file,
+            final Manifest manifest
+    )
+            throws OwnException
+    {
+        if (size(file) != manifest.length) return false;
+        if (!manifest.verify(keyWrapper)) return false;
+
+        final byte[][] leaves = hashChunks(file, manifest.chunkSize, manifest.length);
+
+        for (int i = 0; i < leaves.length; ++i) {
+            if (!MessageDigest.isEqual(leaves[i], manifest.leaves[i])) return false;
+        }
+
+        return true;
+    }
+
+    private byte[][] hashChunks(final FileChannel file, final int chunkSize, final long length)
+            throws OwnException
+    {
+        final long count = Math.max(1, (length + chunkSize - 1) / chunkSize);
+        if (count > Integer.MAX_VALUE) throw new OwnException("Too many chunks");
+
+        final byte[][] leaves = new byte[(int)count][];
+
+        final long start = HASH_TIMER.start();
+
+        try {
+            pool.invoke(new Slice(file, chunkSize, length, leaves, 0, leaves.length));
+        } catch (WrappedException e) {
+            throw e.cause;
+        }
+
+        HASH_TIMER.stop(start);
+        CHUNK_COUNTER.add(leaves.length);
+
+        return leaves;
+    }
+
+    private static long size(final FileChannel file) throws OwnException {
+        try {
+            return file.size();
+        } catch (IOException e) {
+            throw new OwnException("Can not read file", e);
+        }
+    }
+
+    private static MessageDigest digest() throws OwnException {
+        try {
+            return MessageDigest.getInstance(DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new OwnException("No such algorithm", e);
+        }
+    }
+
+    private static byte[] leaf(final MessageDigest digest, final ByteBuffer chunk) {
+        digest.update(LEAF_PREFIX);
+        digest.update(chunk);
+        return digest.digest();
+    }
+
+    private static byte[] root(final byte[][] leaves) throws OwnException {
+        final MessageDigest digest = digest();
+
+        byte[][] level = leaves;
+
+        while (level.length > 1) {
+            final byte[][] parents = new byte[(level.length + 1) / 2][];
+
+            for (int i = 0; i < parents.length; ++i) {
+                if (2 * i + 1 == level.length) {
+                    parents[i] = level[2 * i];
+                } else {
+                    digest.update(NODE_PREFIX);
+                    digest.update(level[2 * i]);
+                    digest.update(level[2 * i + 1]);
+                    parents[i] = digest.digest();
+                }
+            }
+
+            level = parents;
+        }
+
+        return level[0];
+    }
+
+    private static byte[] signedMessage(final int chunkSize, final long length, final byte[] root) {
+        return ByteBuffer.allocate(4 + 1 + 4 + 8 + HASH_SIZE)
+                .putInt(MAGIC)
+                .put(VERSION)
+                .putInt(chunkSize)
+                .putLong(length)
+                .put(root)
+                .array();
+    }
+
+    // Chunk hashes and the signature of their root. Manifests are
+    // immutable; verify() remembers the public key that passed, so checking
+    // many chunks costs one public key operation. The key is compared by
+    // its encoding, as a wrapper may outlive its key store entry.
+    public static final class Manifest {
+        private final int chunkSize;
+        private final long length;
+        private final byte[][] leaves;
+        private final byte[] signature;
+
+        private volatile byte[] verifiedPublicKey = null;
+
+        private Manifest(
+                final int chunkSize,
+                final long length,
+                final byte[][] leaves,
+                final byte[] signature
+        ) {
+            this.chunkSize = chunkSize;
+            this.length = length;
+            this.leaves = leaves;
+            this.signature = signature;
+        }
+
+        // Format: magic, version, chunk size, file length, number of chunks,
+        // chunk hashes, signature length (2 bytes), signature.
+        public static Manifest parse(final ByteBuffer buffer) throws OwnException {
+            try {
+                if (buffer.getInt() != MAGIC) throw new OwnException("Not a manifest");
+                if (buffer.get() != VERSION) throw new OwnException("Unsupported version");
+
+                final int chunkSize = buffer.getInt();
+                final long length = buffer.getLong();
+                final int count = buffer.getInt();
+
+                if (chunkSize <= 0 || length < 0 ||
+                        count != Math.max(1, (length + chunkSize - 1) / chunkSize)) {
+                    throw new OwnException("Invalid manifest");
+                }
+
+                if ((long)count * HASH_SIZE > buffer.remaining()) {
+                    throw new OwnException("Truncated manifest");
+                }
+
+                final byte[][] leaves = new byte[count][HASH_SIZE];
+                for (byte[] leaf : leaves) buffer.get(leaf);
+
+                final byte[] signature = new byte[buffer.getShort() & 0xffff];
+                buffer.get(signature);
+
+                return new Manifest(chunkSize, length, leaves, signature);
+            } catch (BufferUnderflowException e) {
+                throw new OwnException("Truncated manifest", e);
+            }
+        }
+
+        public byte[] toByteArray() {
+            final ByteBuffer buffer = ByteBuffer.allocate(
+                    4 + 1 + 4 + 8 + 4 + leaves.length * HASH_SIZE + 2 + signature.length);
+
+            buffer.putInt(MAGIC);
+            buffer.put(VERSION);
+            buffer.putInt(chunkSize);
+            buffer.putLong(length);
+            buffer.putInt(leaves.length);
+            for (byte[] leaf : leaves) buffer.put(leaf);
+            buffer.putShort((short)signature.length);
+            buffer.put(signature);
+
+            return buffer.array();
+        }
+
+        public int getChunkSize() { return chunkSize; }
+
+        public long getLength() { return length; }
+
+        public int getChunkCount() { return leaves.length; }
+
+        public byte[] getRoot() throws OwnException { return root(leaves).clone(); }
+
+        // Checks the signature of the root rebuilt from the chunk hashes.
+        public boolean verify(final KeyWrapper keyWrapper) throws OwnException {
+            final byte[] publicKey = keyWrapper.getPublicKey().getEncoded();
+
+            final byte[] verifiedPublicKey = this.verifiedPublicKey;
+            if (verifiedPublicKey != null && MessageDigest.isEqual(verifiedPublicKey, publicKey)) {
+                return true;
+            }
+
+            final boolean verified = keyWrapper.verify(
+                    signedMessage(chunkSize, length, root(leaves)),
+                    signature);
+
+            if (verified) this.verifiedPublicKey = publicKey;
+
+            return verified;
+        }
+
+        // Checks one chunk, the bytes at index * chunkSize of the file,
+        // without reading the rest of it.
+        public boolean verifyChunk(
+                final KeyWrapper keyWrapper,
+                final int index,
+                final ByteBuffer chunk
+        )
+                throws OwnException
+        {
+            if (index < 0 || index >= leaves.length) return false;
+
+            final long expectedSize = Math.min(chunkSize, length - (long)index * chunkSize);
+            if (chunk.remaining() != expectedSize) return false;
+
+            if (!verify(keyWrapper)) return false;
+
+            return MessageDigest.isEqual(leaves[index], leaf(digest(), chunk));
+        }
+
+        @Override
+        public boolean equals(final Object object) {
+            if (!(object instanceof Manifest)) return false;
+
+            final Manifest manifest = (Manifest)object;
+
+            return chunkSize == manifest.chunkSize &&
+                    length == manifest.length &&
+                    Arrays.deepEquals(leaves, manifest.leaves) &&
+                    Arrays.equals(signature, manifest.signature);
+        }
+
+        @Override
+        public int hashCode() {
+            return Arrays.hashCode(signature);
+        }
+    }
+
+    private static ByteBuffer buffer(final int chunkSize) {
+        ByteBuffer buffer = BUFFERS.get();
+
+        if (buffer == null || buffer.capacity() < chunkSize) {
+            buffer = ByteBuffer.allocate(chunkSize);
+            BUFFERS.set(buffer);
+        }
+
+        return buffer;
+    }
+
+    @SuppressWarnings("serial")
+    private static final class Slice extends RecursiveAction {
+        private final FileChannel file;
+        private final int chunkSize;
+        private final long length;
+        private final byte[][] leaves;
+        private final int from;
+        private final int to;
+
+        private Slice(
+                final FileChannel file,
+                final int chunkSize,
+                final long length,
+                final byte[][] leaves,
+                final int from,
+                final int to
+        ) {
+            this.file = file;
+            this.chunkSize = chunkSize;
+            this.length = length;
+            this.leaves = leaves;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > MIN_SLICE_SIZE) {
+                final int middle = (from + to) >>> 1;
+                invokeAll(
+                        new Slice(file, chunkSize, length, leaves, from, middle),
+                        new Slice(file, chunkSize, length, leaves, middle, to));
+                return;
+            }
+
+            try {
+                hash();
+            } catch (OwnException e) {
+                throw new WrappedException(e);
+            }
+        }
+
+        // Positional reads don't move the channel position, so slices can
+        // share the channel.
+        private void hash() throws OwnException {
+            final MessageDigest digest = digest();
+            final ByteBuffer buffer = buffer(chunkSize);
+
+            for (int i = from; i < to; ++i) {
+                final long offset = (long)i * chunkSize;
+
+                buffer.clear();
+                buffer.limit((int)Math.min(chunkSize, length - offset));
+
+                try {
+                    while (buffer.hasRemaining()) {
+                        if (file.read(buffer, offset + buffer.position()) == -1) {
+                            throw new OwnException("File has changed");
+                        }
+                    }
+                } catch (IOException e) {
+                    throw new OwnException("Can not read file", e);
+                }
+
+                buffer.flip();
+                leaves[i] = leaf(digest, buffer);
+            }
+        }
+    }
+
+    // Carries checked exceptions out of compute(), which can't throw them.
+    @SuppressWarnings("serial")
+    private static final class WrappedException extends RuntimeException {
+        private final OwnException cause;
+
+        private WrappedException(final OwnException cause) {
+            super(cause);
+            this.cause = cause;
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Process-wide counters and latency histograms of the key store
+// operations and their phases. Timers and counters are created once and
+// kept in static fields by the instrumented classes, so recording is a
+// few atomic increments and can stay on in production. Histograms have
+// one bucket per power of two of nanoseconds, which makes percentiles
+// accurate to a factor of two. Operations stop their timer only when they
+// succeed, so a timer counts as failed whatever it started and never
+// stopped.
+public final class Metrics {
+    private static final int BUCKET_COUNT = 64;
+
+    private static final ConcurrentHashMap<String, Timer> timers = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<>();
+
+    private static volatile boolean enabled = true;
+
+    private Metrics() {}
+
+    public static boolean isEnabled() { return enabled; }
+
+    public static void setEnabled(final boolean enabled) {
+        Metrics.enabled = enabled;
+    }
+
+    public static Timer timer(final String name) {
+        final Timer timer = new Timer(name);
+        final Timer existing = timers.putIfAbsent(name, timer);
+        return existing == null ? timer : existing;
+    }
+
+    public static Counter counter(final String name) {
+        final Counter counter = new Counter(name);
+        final Counter existing = counters.putIfAbsent(name, counter);
+        return existing == null ? counter : existing;
+    }
+
+    public static void reset() {
+        for (Timer timer : timers.values()) timer.reset();
+        for (Counter counter : counters.values()) counter.reset();
+    }
+
+    // Timers that have recorded anything or failed, sorted by name.
+    public static List<TimerSnapshot> snapshotTimers() {
+        final ArrayList<TimerSnapshot> result = new ArrayList<>();
+
+        for (Timer timer : timers.values()) {
+            final TimerSnapshot snapshot = timer.snapshot();
+            if (snapshot.getCount() > 0 || snapshot.getFailedCount() > 0) result.add(snapshot);
+        }
+
+        Collections.sort(result, new Comparator<TimerSnapshot>() {
+            @Override
+            public int compare(final TimerSnapshot a, final TimerSnapshot b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+
+        return result;
+    }
+
+    // Values of the counters that are not zero, sorted by name.
+    public static Map<String, Long> snapshotCounters() {
+        final TreeMap<String, Long> result = new TreeMap<>();
+
+        for (Counter counter : counters.values()) {
+            final long value = counter.get();
+            if (value != 0) result.put(counter.getName(), value);
+        }
+
+        return result;
+    }
+
+    // Plain text table, one timer or counter per line, for logs and the
+    // diagnostics screen. Times are in microseconds.
+    public static String export() {
+        final StringBuilder result = new StringBuilder();
+
+        result.append(String.format(Locale.ROOT, "%-28s %8s %8s %9s %9s %9s %9s%n",
+                "timer", "count", "failed", "mean", "p50", "p99", "max"));
+
+        for (TimerSnapshot snapshot : snapshotTimers()) {
+            result.append(String.format(Locale.ROOT, "%-28s %8d %8d %9.1f %9.1f %9.1f %9.1f%n",
+                    snapshot.getName(),
+                    snapshot.getCount(),
+                    snapshot.getFailedCount(),
+                    snapshot.getMeanNanos() / 1e3,
+                    snapshot.getPercentileNanos(50) / 1e3,
+                    snapshot.getPercentileNanos(99) / 1e3,
+                    snapshot.getMaxNanos() / 1e3));
+        }
+
+        result.append(String.format(Locale.ROOT, "%n%-28s %8s%n", "counter", "value"));
+
+        for (Map.Entry<String, Long> counter : snapshotCounters().entrySet()) {
+            result.append(String.format(Locale.ROOT, "%-28s %8d%n",
+                    counter.getKey(), counter.getValue()));
+        }
+
+        return result.toString();
+    }
+
+    public static final class Timer {
+        private final String name;
+
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong started = new AtomicLong();
+        private final AtomicLong stopped = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+        private Timer(final String name) {
+            this.name = name;
+        }
+
+        public String getName() { return name; }
+
+        // Any value of System.nanoTime() is a valid start, so whether
+        // anything is recorded depends on the enabled flag alone.
+        public long start() {
+            if (enabled) started.incrementAndGet();
+
+            return System.nanoTime();
+        }
+
+        public void stop(final long start) {
+            if (!enabled) return;
+
+            stopped.incrementAndGet();
+            record(System.nanoTime() - start);
+        }
+
+        public void record(final long nanos) {
+            if (!enabled || nanos < 0) return;
+
+            count.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            buckets.incrementAndGet(BUCKET_COUNT - 1 - Long.numberOfLeadingZeros(nanos | 1));
+
+            long max = maxNanos.get();
+            while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+        }
+
+        private void reset() {
+            count.set(0);
+            started.set(0);
+            stopped.set(0);
+            totalNanos.set(0);
+            maxNanos.set(0);
+            for (int i = 0; i < BUCKET_COUNT; ++i) buckets.set(i, 0);
+        }
+
+        // Fields are read one by one, so a snapshot taken while recording
+        // may be off by the operations in flight.
+        public TimerSnapshot snapshot() {
+            final long[] bucketCounts = new long[BUCKET_COUNT];
+            for (int i = 0; i < BUCKET_COUNT; ++i) bucketCounts[i] = buckets.get(i);
+
+            // Operations in flight count as failed until they stop.
+            final long failedCount = Math.max(0, started.get() - stopped.get());
+
+            return new TimerSnapshot(
+                    name,
+                    count.get(),
+                    failedCount,
+                    totalNanos.get(),
+                    maxNanos.get(),
+                    bucketCounts);
+        }
+    }
+
+    public static final class Counter {
+        private final String name;
+        private final AtomicLong value = new AtomicLong();
+
+        private Counter(final String name) {
+            this.name = name;
+        }
+
+        public String getName() { return name; }
+
+        public long get() { return value.get(); }
+
+        public void increment() {
+            if (enabled) value.incrementAndGet();
+        }
+
+        public void add(final long delta) {
+            if (enabled) value.addAndGet(delta);
+        }
+
+        private void reset() {
+            value.set(0);
+        }
+    }
+
+    public static final class TimerSnapshot {
+        private final String name;
+        private final long count;
+        private final long failedCount;
+        private final long totalNanos;
+        private final long maxNanos;
+        private final long[] buckets;
+
+        private TimerSnapshot(
+                final String name,
+                final long count,
+                final long failedCount,
+                final long totalNanos,
+                final long maxNanos,
+                final long[] buckets
+        ) {
+            this.name = name;
+            this.count = count;
+            this.failedCount = failedCount;
+            this.totalNanos = totalNanos;
+            this.maxNanos = maxNanos;
+            this.buckets = buckets;
+        }
+
+        public String getName() { return name; }
+
+        public long getCount() { return count; }
+
+        // Started and never stopped, which includes operations in flight.
+        public long getFailedCount() { return failedCount; }
+
+        public long getTotalNanos() { return totalNanos; }
+
+        public long getMaxNanos() { return maxNanos; }
+
+        public double getMeanNanos() { return count == 0 ? 0 : (double)totalNanos / count; }
+
+        // Upper bound of the bucket holding the percentile, capped by the
+        // maximum.
+        public long getPercentileNanos(final double percentile) {
+            long total = 0;
+            for (long bucket : buckets) total += bucket;
+            if (total == 0) return 0;
+
+            final long rank = (long)Math.ceil(percentile / 100 * total);
+
+            long seen = 0;
+            for (int i = 0; i < BUCKET_COUNT; ++i) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    final long upper = i >= 62 ? Long.MAX_VALUE : (2L << i) - 1;
+                    return Math.min(upper, maxNanos);
+                }
+            }
+
+            return maxNanos;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.util.concurrent.ForkJoinPool;
+
+// The pool of BulkVerifier and MerkleSigner when they aren't given one.
+// ForkJoinPool.commonPool() needs API 24. This pool is created on first
+// use, has a worker per core and is never shut down, which is fine as
+// fork-join workers are daemon threads.
+final class SharedForkJoinPool {
+    private SharedForkJoinPool() {}
+
+    static ForkJoinPool get() { return Holder.POOL; }
+
+    private static final class Holder {
+        private static final ForkJoinPool POOL = new ForkJoinPool();
+    }
+}
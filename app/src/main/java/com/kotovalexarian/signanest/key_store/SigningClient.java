@@ -0,0 +1,104 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Client side of the SigningServer protocol. Requests are buffered until
+// flush(), so many of them can be sent before reading any response.
+// Sending and receiving may happen on different threads, but each of them
+// on one thread at a time.
+public final class SigningClient {
+    private final DataInputStream input;
+    private final DataOutputStream output;
+
+    private int nextId = 0;
+
+    public SigningClient(final InputStream input, final OutputStream output) {
+        this.input = new DataInputStream(new BufferedInputStream(input));
+        this.output = new DataOutputStream(new BufferedOutputStream(output));
+    }
+
+    // Each send method returns the id of the request.
+
+    public int sign(final String alias, final byte[] text) throws IOException {
+        return send(SigningServer.SIGN, alias, text, null);
+    }
+
+    public int verify(final String alias, final byte[] text, final byte[] signature)
+            throws IOException
+    {
+        return send(SigningServer.VERIFY, alias, text, signature);
+    }
+
+    public int decrypt(final String alias, final byte[] cipherText) throws IOException {
+        return send(SigningServer.DECRYPT, alias, cipherText, null);
+    }
+
+    public void flush() throws IOException {
+        output.flush();
+    }
+
+    // Blocks until the next response arrives.
+    public Response receive() throws IOException {
+        final int id = input.readInt();
+        final byte status = input.readByte();
+
+        if (status == SigningServer.OK) {
+            return new Response(id, SigningServer.readData(input), null);
+        }
+
+        return new Response(id, null, input.readUTF());
+    }
+
+    private int send(
+            final byte operation,
+            final String alias,
+            final byte[] data,
+            final byte[] signature
+    )
+            throws IOException
+    {
+        final int id = nextId++;
+
+        output.writeInt(id);
+        output.writeByte(operation);
+        output.writeUTF(alias);
+        output.writeInt(data.length);
+        output.write(data);
+
+        if (signature != null) {
+            output.writeInt(signature.length);
+            output.write(signature);
+        }
+
+        return id;
+    }
+
+    public static final class Response {
+        private final int id;
+        private final byte[] result;
+        private final String error;
+
+        private Response(final int id, final byte[] result, final String error) {
+            this.id = id;
+            this.result = result;
+            this.error = error;
+        }
+
+        public int getId() { return id; }
+
+        public boolean isSuccess() { return result != null; }
+
+        // The signature, or the plain text.
+        public byte[] getResult() { return result; }
+
+        public boolean isVerified() { return result != null && result.length == 1 && result[0] == 1; }
+
+        public String getError() { return error; }
+    }
+}
@@ -0,0 +1,401 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+// Serves sign, verify and decrypt requests of other processes over any
+// byte stream, usually a local socket, see SigningService. Clients may
+// send many requests without waiting for the responses. Requests of all
+// clients go to one queue. A dispatcher thread drains it, groups what it
+// took by alias and hands every group to a worker, which handles it with
+// one warm key and engine. Responses carry the id of their request and
+// may arrive out of order. Every request gets exactly one response, an
+// error if the server is closed before it has been handled.
+//
+// Queued requests may hold up to MAX_QUEUED_SIZE bytes. When they do, the
+// clients are not read from until responses have been sent.
+//
+// Request:  int id, byte operation, UTF alias, int length, bytes
+//           and for VERIFY also int length, signature bytes.
+// Response: int id, byte status, then for OK int length, bytes (the
+//           signature, one byte 1 or 0, or the plain text), for ERROR
+//           a UTF message.
+public final class SigningServer implements Closeable {
+    static final byte SIGN = 1;
+    static final byte VERIFY = 2;
+    static final byte DECRYPT = 3;
+
+    static final byte OK = 0;
+    static final byte ERROR = 1;
+
+    static final int MAX_DATA_SIZE = 1 << 20;
+    static final int MAX_QUEUED_SIZE = 16 * MAX_DATA_SIZE;
+
+    private static final int MAX_BATCH_SIZE = 256;
+
+    // Charged for every request on top of its data, so that empty requests
+    // can't be queued without limit.
+    private static final int REQUEST_OVERHEAD = 64;
+
+    private static final Metrics.Timer BATCH_TIMER = Metrics.timer("service.batch");
+    private static final Metrics.Counter REQUEST_COUNTER = Metrics.counter("service.requests");
+    private static final Metrics.Counter BATCH_COUNTER = Metrics.counter("service.batches");
+
+    private final KeyStoreWrapper keyStoreWrapper;
+
+    private final ExecutorService workers;
+    private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<>();
+    private final Semaphore queuedSize = new Semaphore(MAX_QUEUED_SIZE);
+    private final Thread dispatcher;
+
+    private volatile boolean closed = false;
+
+    public SigningServer(final KeyStoreWrapper keyStoreWrapper) {
+        this(keyStoreWrapper, Runtime.getRuntime().availableProcessors());
+    }
+
+    public SigningServer(final KeyStoreWrapper keyStoreWrapper, final int parallelism) {
+        this.keyStoreWrapper = keyStoreWrapper;
+        this.workers = Executors.newFixedThreadPool(parallelism);
+
+        dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatch();
+            }
+        }, "SigningServer");
+        dispatcher.start();
+    }
+
+    // Requests that are being handled still get their responses, all the
+    // others get an error.
+    @Override
+    public void close() {
+        closed = true;
+        dispatcher.interrupt();
+
+        for (Runnable task : workers.shutdownNow()) {
+            fail(((BatchTask)task).batch, new OwnException("Server closed"));
+        }
+
+        failQueued();
+    }
+
+    // Reads the requests of one client on the calling thread until it
+    // disconnects. Malformed input ends the connection.
+    public void serve(final InputStream input, final OutputStream output) throws IOException {
+        final DataInputStream dataInput = new DataInputStream(new BufferedInputStream(input));
+        final Connection connection = new Connection(output);
+
+        while (true) {
+            final int id;
+            try {
+                id = dataInput.readInt();
+            } catch (EOFException e) {
+                return;
+            }
+
+            final byte operation = dataInput.readByte();
+            if (operation != SIGN && operation != VERIFY && operation != DECRYPT) {
+                throw new IOException("Unknown operation");
+            }
+
+            final String alias = dataInput.readUTF();
+            final byte[] data = readData(dataInput);
+            final byte[] signature = operation == VERIFY ? readData(dataInput) : null;
+
+            final Request request = new Request(
+                    this, connection, id, operation, alias, data, signature);
+
+            try {
+                while (!queuedSize.tryAcquire(request.size, 1, TimeUnit.SECONDS)) {
+                    if (closed) throw new IOException("Server closed");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }
+
+            REQUEST_COUNTER.increment();
+            queue.add(request);
+
+            // Unless close() has seen it in the queue, it is failed here.
+            if (closed) failQueued();
+        }
+    }
+
+    private void failQueued() {
+        final ArrayList<Request> requests = new ArrayList<>();
+        queue.drainTo(requests);
+        fail(requests, new OwnException("Server closed"));
+    }
+
+    static byte[] readData(final DataInputStream input) throws IOException {
+        final int length = input.readInt();
+        if (length < 0 || length > MAX_DATA_SIZE) throw new IOException("Invalid length");
+
+        final byte[] data = new byte[length];
+        input.readFully(data);
+        return data;
+    }
+
+    private void dispatch() {
+        while (true) {
+            final ArrayList<Request> requests = new ArrayList<>();
+
+            try {
+                requests.add(queue.take());
+            } catch (InterruptedException e) {
+                return; // Closed
+            }
+
+            queue.drainTo(requests, MAX_BATCH_SIZE - 1);
+
+            final LinkedHashMap<String, ArrayList<Request>> batches = new LinkedHashMap<>();
+
+            for (Request request : requests) {
+                ArrayList<Request> batch = batches.get(request.alias);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    batches.put(request.alias, batch);
+                }
+                batch.add(request);
+            }
+
+            // The dispatcher must survive anything a batch can throw, or
+            // all later requests would wait forever.
+            for (List<Request> batch : batches.values()) {
+                try {
+                    workers.execute(new BatchTask(lookup(batch.get(0).alias), batch));
+                } catch (OwnException e) {
+                    fail(batch, e);
+                } catch (RejectedExecutionException e) {
+                    fail(batch, new OwnException("Server closed", e));
+                } catch (RuntimeException e) {
+                    fail(batch, new OwnException("Unexpected failure", e));
+                }
+            }
+        }
+    }
+
+    // The wrapper is the one the app creates keys through, so its snapshot
+    // is current. An unknown alias is an error and never causes a refresh,
+    // which would let any peer make the key store reload at will.
+    private KeyWrapper lookup(final String alias) throws OwnException {
+        return keyStoreWrapper.getByAlias(alias);
+    }
+
+    private static void handle(final KeyWrapper keyWrapper, final List<Request> batch) {
+        final long start = BATCH_TIMER.start();
+        BATCH_COUNTER.increment();
+
+        final ArrayList<Request> signs = new ArrayList<>();
+        final ArrayList<Request> verifies = new ArrayList<>();
+
+        for (Request request : batch) {
+            if (request.operation == SIGN) {
+                signs.add(request);
+            } else if (request.operation == VERIFY) {
+                verifies.add(request);
+            } else {
+                try {
+                    request.succeed(keyWrapper.decrypt(request.data));
+                } catch (OwnException e) {
+                    request.fail(e);
+                }
+            }
+        }
+
+        if (!signs.isEmpty()) sign(keyWrapper, signs);
+        if (!verifies.isEmpty()) verify(keyWrapper, verifies);
+
+        flush(batch);
+
+        BATCH_TIMER.stop(start);
+    }
+
+    // Signed with a single engine. If that fails, every text is signed on
+    // its own, so only the requests that can't be served get an error.
+    private static void sign(final KeyWrapper keyWrapper, final List<Request> requests) {
+        final ArrayList<byte[]> texts = new ArrayList<>(requests.size());
+        for (Request request : requests) texts.add(request.data);
+
+        try {
+            final byte[][] signatures = keyWrapper.signAll(texts);
+            for (int i = 0; i < signatures.length; ++i) requests.get(i).succeed(signatures[i]);
+        } catch (OwnException batchException) {
+            for (Request request : requests) {
+                try {
+                    request.succeed(keyWrapper.sign(request.data));
+                } catch (OwnException e) {
+                    request.fail(e);
+                }
+            }
+        }
+    }
+
+    private static void verify(final KeyWrapper keyWrapper, final List<Request> requests) {
+        final ArrayList<byte[]> texts = new ArrayList<>(requests.size());
+        final ArrayList<byte[]> signatures = new ArrayList<>(requests.size());
+
+        for (Request request : requests) {
+            texts.add(request.data);
+            signatures.add(request.signature);
+        }
+
+        try {
+            final boolean[] results = keyWrapper.verifyAll(texts, signatures);
+            for (int i = 0; i < results.length; ++i) {
+                requests.get(i).succeed(new byte[] { (byte)(results[i] ? 1 : 0) });
+            }
+        } catch (OwnException e) {
+            for (Request request : requests) request.fail(e);
+        }
+    }
+
+    // Only the requests that haven't got a response yet get the error.
+    private static void fail(final List<Request> batch, final OwnException e) {
+        for (Request request : batch) request.fail(e);
+        flush(batch);
+    }
+
+    // One flush per client and batch, however many responses it got.
+    private static void flush(final List<Request> batch) {
+        final LinkedHashSet<Connection> connections = new LinkedHashSet<>();
+        for (Request request : batch) connections.add(request.connection);
+
+        for (Connection connection : connections) connection.flush();
+    }
+
+    private static final class BatchTask implements Runnable {
+        private final KeyWrapper keyWrapper;
+        private final List<Request> batch;
+
+        private BatchTask(final KeyWrapper keyWrapper, final List<Request> batch) {
+            this.keyWrapper = keyWrapper;
+            this.batch = batch;
+        }
+
+        @Override
+        public void run() {
+            try {
+                handle(keyWrapper, batch);
+            } catch (RuntimeException e) {
+                fail(batch, new OwnException("Unexpected failure", e));
+            }
+        }
+    }
+
+    private static final class Request {
+        private final SigningServer server;
+        private final Connection connection;
+        private final int id;
+        private final byte operation;
+        private final String alias;
+        private final byte[] data;
+        private final byte[] signature;
+        private final int size;
+
+        private boolean answered = false;
+
+        private Request(
+                final SigningServer server,
+                final Connection connection,
+                final int id,
+                final byte operation,
+                final String alias,
+                final byte[] data,
+                final byte[] signature
+        ) {
+            this.server = server;
+            this.connection = connection;
+            this.id = id;
+            this.operation = operation;
+            this.alias = alias;
+            this.data = data;
+            this.signature = signature;
+            this.size = REQUEST_OVERHEAD + alias.length() + data.length +
+                    (signature == null ? 0 : signature.length);
+        }
+
+        private void succeed(final byte[] result) {
+            if (answer()) connection.write(id, OK, result, null);
+        }
+
+        private void fail(final OwnException e) {
+            if (answer()) connection.write(id, ERROR, null, e.getMessage());
+        }
+
+        // Whether this is the first response. Its queued size is released
+        // with it.
+        private synchronized boolean answer() {
+            if (answered) return false;
+
+            answered = true;
+            server.queuedSize.release(size);
+            return true;
+        }
+    }
+
+    private static final class Connection {
+        private final DataOutputStream output;
+
+        // Set once writing fails, the reader finds out on its own.
+        private boolean broken = false;
+
+        private Connection(final OutputStream output) {
+            this.output = new DataOutputStream(new BufferedOutputStream(output));
+        }
+
+        private synchronized void write(
+                final int id,
+                final byte status,
+                final byte[] result,
+                final String message
+        ) {
+            if (broken) return;
+
+            try {
+                output.writeInt(id);
+                output.writeByte(status);
+
+                if (status == OK) {
+                    output.writeInt(result.length);
+                    output.write(result);
+                } else {
+                    output.writeUTF(message == null ? "" : message);
+                }
+            } catch (IOException e) {
+                broken = true;
+            }
+        }
+
+        private synchronized void flush() {
+            if (broken) return;
+
+            try {
+                output.flush();
+            } catch (IOException e) {
+                broken = true;
+            }
+        }
+    }
+}
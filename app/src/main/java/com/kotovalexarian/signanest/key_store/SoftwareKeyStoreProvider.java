@@ -0,0 +1,307 @@
+package com.kotovalexarian.signanest.key_store;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.InvalidAlgorithmParameterException;
+import java.security.Key;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.KeyStoreSpi;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.interfaces.ECKey;
+import java.security.interfaces.RSAKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Enumeration;
+import java.util.TreeMap;
+
+// Keeps keys in memory and does all cryptography with the default JCA
+// providers, so the package can be tested and benchmarked on a plain JVM.
+// Like AndroidKeyStore, every key store loaded from one provider sees the
+// same entries. Nothing is persisted and nothing is hardware-backed.
+public final class SoftwareKeyStoreProvider implements KeyStoreProvider {
+    private static final String TYPE = "Software";
+
+    // Same values as the KeyProperties constants of Android, which aren't
+    // available on a plain JVM.
+    private static final int PURPOSE_ENCRYPT = 1;
+    private static final int PURPOSE_DECRYPT = 2;
+    private static final int PURPOSE_SIGN = 4;
+    private static final int PURPOSE_VERIFY = 8;
+
+    private final TreeMap<String, Entry> entries = new TreeMap<>();
+
+    @Override
+    public KeyStore loadKeyStore() throws OwnException {
+        // There's no registered JCA provider behind the key store, it is
+        // only ever created here.
+        final KeyStore keyStore = new KeyStore(new Spi(entries), null, TYPE) {};
+
+        try {
+            keyStore.load(null);
+        } catch (CertificateException | IOException | NoSuchAlgorithmException e) {
+            throw new OwnException("Can not initialize key store", e);
+        }
+
+        return keyStore;
+    }
+
+    @Override
+    public void generateKeyPair(
+            final KeyStore keyStore,
+            final String entryAlias,
+            final KeyAlgorithm keyAlgorithm
+    )
+            throws OwnException
+    {
+        try {
+            final KeyPairGenerator keyPairGenerator =
+                    KeyPairGenerator.getInstance(keyAlgorithm.getName());
+
+            if (keyAlgorithm == KeyAlgorithm.EC) {
+                keyPairGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+            } else {
+                keyPairGenerator.initialize(keyAlgorithm.getKeySize());
+            }
+
+            importKeyPair(entryAlias, keyPairGenerator.generateKeyPair());
+        } catch (NoSuchAlgorithmException | InvalidAlgorithmParameterException e) {
+            throw new OwnException("Can not generate key", e);
+        }
+    }
+
+    @Override
+    public KeyMetadata getMetadata(
+            final KeyStore keyStore,
+            final String alias,
+            final String entryAlias,
+            final PrivateKey privateKey
+    )
+            throws OwnException
+    {
+        final Entry entry = get(entryAlias);
+        if (entry == null) throw new OwnException("Alias doesn't exist");
+
+        final KeyAlgorithm keyAlgorithm = KeyAlgorithm.of(privateKey.getAlgorithm());
+
+        int purposes = PURPOSE_SIGN | PURPOSE_VERIFY;
+        if (keyAlgorithm.isEncryptionSupported()) {
+            purposes |= PURPOSE_ENCRYPT | PURPOSE_DECRYPT;
+        }
+
+        return new KeyMetadata(
+                alias,
+                privateKey.getAlgorithm(),
+                keySize(privateKey),
+                purposes,
+                entry.creationDate,
+                false);
+    }
+
+    // Adds an existing key pair, for example to set up many keys in tests
+    // without generating each of them.
+    public void importKeyPair(final String entryAlias, final KeyPair keyPair) {
+        synchronized (entries) {
+            entries.put(entryAlias, new Entry(keyPair, new Date()));
+        }
+    }
+
+    private Entry get(final String entryAlias) {
+        synchronized (entries) {
+            return entries.get(entryAlias);
+        }
+    }
+
+    private static int keySize(final PrivateKey privateKey) {
+        if (privateKey instanceof RSAKey) {
+            return ((RSAKey)privateKey).getModulus().bitLength();
+        }
+
+        if (privateKey instanceof ECKey) {
+            return ((ECKey)privateKey).getParams().getCurve().getField().getFieldSize();
+        }
+
+        return 0;
+    }
+
+    private static final class Entry {
+        private final KeyPair keyPair;
+        private final Certificate certificate;
+        private final Date creationDate;
+
+        private Entry(final KeyPair keyPair, final Date creationDate) {
+            this.keyPair = keyPair;
+            this.certificate = new PublicKeyCertificate(keyPair.getPublic());
+            this.creationDate = creationDate;
+        }
+    }
+
+    // Only carries the public key, which is all KeyWrapper reads from it.
+    @SuppressWarnings("serial")
+    private static final class PublicKeyCertificate extends Certificate {
+        private final PublicKey publicKey;
+
+        private PublicKeyCertificate(final PublicKey publicKey) {
+            super("X.509");
+            this.publicKey = publicKey;
+        }
+
+        @Override
+        public byte[] getEncoded() { return publicKey.getEncoded(); }
+
+        @Override
+        public void verify(final PublicKey key) {}
+
+        @Override
+        public void verify(final PublicKey key, final String sigProvider) {}
+
+        @Override
+        public String toString() { return "PublicKeyCertificate"; }
+
+        @Override
+        public PublicKey getPublicKey() { return publicKey; }
+    }
+
+    private static final class Spi extends KeyStoreSpi {
+        private final TreeMap<String, Entry> entries;
+
+        private Spi(final TreeMap<String, Entry> entries) {
+            this.entries = entries;
+        }
+
+        private Entry get(final String alias) {
+            synchronized (entries) {
+                return entries.get(alias);
+            }
+        }
+
+        @Override
+        public Key engineGetKey(final String alias, final char[] password) {
+            final Entry entry = get(alias);
+            return entry == null ? null : entry.keyPair.getPrivate();
+        }
+
+        // Entries are not password protected, as in AndroidKeyStore.
+        @Override
+        public KeyStore.Entry engineGetEntry(
+                final String alias,
+                final KeyStore.ProtectionParameter protection
+        ) {
+            final Entry entry = get(alias);
+            if (entry == null) return null;
+
+            return new KeyStore.PrivateKeyEntry(
+                    entry.keyPair.getPrivate(),
+                    new Certificate[] { entry.certificate });
+        }
+
+        @Override
+        public Certificate[] engineGetCertificateChain(final String alias) {
+            final Entry entry = get(alias);
+            return entry == null ? null : new Certificate[] { entry.certificate };
+        }
+
+        @Override
+        public Certificate engineGetCertificate(final String alias) {
+            final Entry entry = get(alias);
+            return entry == null ? null : entry.certificate;
+        }
+
+        @Override
+        public Date engineGetCreationDate(final String alias) {
+            final Entry entry = get(alias);
+            return entry == null ? null : entry.creationDate;
+        }
+
+        @Override
+        public void engineSetKeyEntry(
+                final String alias,
+                final Key key,
+                final char[] password,
+                final Certificate[] chain
+        ) {
+            synchronized (entries) {
+                entries.put(alias, new Entry(
+                        new KeyPair(chain[0].getPublicKey(), (PrivateKey)key),
+                        new Date()));
+            }
+        }
+
+        @Override
+        public void engineSetKeyEntry(
+                final String alias,
+                final byte[] key,
+                final Certificate[] chain
+        )
+                throws KeyStoreException
+        {
+            throw new KeyStoreException("Protected keys are not supported");
+        }
+
+        @Override
+        public void engineSetCertificateEntry(
+                final String alias,
+                final Certificate certificate
+        )
+                throws KeyStoreException
+        {
+            throw new KeyStoreException("Certificate entries are not supported");
+        }
+
+        @Override
+        public void engineDeleteEntry(final String alias) {
+            synchronized (entries) {
+                entries.remove(alias);
+            }
+        }
+
+        @Override
+        public Enumeration<String> engineAliases() {
+            synchronized (entries) {
+                return Collections.enumeration(new ArrayList<>(entries.keySet()));
+            }
+        }
+
+        @Override
+        public boolean engineContainsAlias(final String alias) {
+            return get(alias) != null;
+        }
+
+        @Override
+        public int engineSize() {
+            synchronized (entries) {
+                return entries.size();
+            }
+        }
+
+        @Override
+        public boolean engineIsKeyEntry(final String alias) {
+            return get(alias) != null;
+        }
+
+        @Override
+        public boolean engineIsCertificateEntry(final String alias) {
+            return false;
+        }
+
+        @Override
+        public String engineGetCertificateAlias(final Certificate certificate) {
+            return null;
+        }
+
+        @Override
+        public void engineStore(final OutputStream stream, final char[] password) {}
+
+        @Override
+        public void engineLoad(final InputStream stream, final char[] password) {}
+    }
+}
@@ -0,0 +1,133 @@
+package com.kotovalexarian.signanest;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+
+// A small JMH-like harness: runs an operation for a warmup period, then
+// measures the latency of every call for a fixed period on the current
+// thread. Allocation is read from the HotSpot thread counters when the
+// JVM provides them.
+final class Benchmark {
+    private static final int MAX_SAMPLES = 1 << 20;
+
+    private final long warmupNanos;
+    private final long measurementNanos;
+
+    // Preallocated so that recording doesn't show up as allocation.
+    private final long[] samples = new long[MAX_SAMPLES];
+
+    Benchmark(final long warmupMillis, final long measurementMillis) {
+        this.warmupNanos = warmupMillis * 1000000L;
+        this.measurementNanos = measurementMillis * 1000000L;
+    }
+
+    static String header() {
+        return String.format(Locale.ROOT, "%-36s %12s %10s %10s %10s %10s %12s %10s",
+                "benchmark", "ops/s", "p50 us", "p90 us", "p99 us", "max us", "B/op", "MB/s");
+    }
+
+    Result run(final String name, final Operation operation) throws Exception {
+        final long warmupEnd = System.nanoTime() + warmupNanos;
+        while (System.nanoTime() < warmupEnd) operation.run();
+
+        final long allocatedBefore = allocatedBytes();
+        final long start = System.nanoTime();
+        final long end = start + measurementNanos;
+
+        int count = 0;
+        long now = start;
+        while (now < end && count < MAX_SAMPLES) {
+            operation.run();
+            final long next = System.nanoTime();
+            samples[count++] = next - now;
+            now = next;
+        }
+
+        final long elapsedNanos = now - start;
+        final long allocatedAfter = allocatedBytes();
+
+        final long[] latencies = Arrays.copyOf(samples, count);
+        Arrays.sort(latencies);
+
+        return new Result(
+                name,
+                latencies,
+                elapsedNanos,
+                allocatedBefore < 0 ? -1 : allocatedAfter - allocatedBefore);
+    }
+
+    private static long allocatedBytes() {
+        final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+
+        final com.sun.management.ThreadMXBean hotSpotBean = (com.sun.management.ThreadMXBean)bean;
+        if (!hotSpotBean.isThreadAllocatedMemorySupported()) return -1;
+
+        return hotSpotBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    interface Operation {
+        void run() throws Exception;
+    }
+
+    static final class Result {
+        private final String name;
+        private final long[] latencies;
+        private final long elapsedNanos;
+        private final long allocatedBytes;
+
+        private Result(
+                final String name,
+                final long[] latencies,
+                final long elapsedNanos,
+                final long allocatedBytes
+        ) {
+            this.name = name;
+            this.latencies = latencies;
+            this.elapsedNanos = elapsedNanos;
+            this.allocatedBytes = allocatedBytes;
+        }
+
+        String getName() { return name; }
+
+        int getCount() { return latencies.length; }
+
+        double getOpsPerSecond() { return latencies.length * 1e9 / elapsedNanos; }
+
+        // Nearest-rank percentile in nanoseconds.
+        long getPercentile(final double percentile) {
+            final int rank = (int)Math.ceil(percentile / 100 * latencies.length);
+            return latencies[Math.max(0, Math.min(latencies.length - 1, rank - 1))];
+        }
+
+        // Negative when the JVM can't report allocation.
+        double getBytesPerOp() {
+            if (allocatedBytes < 0) return -1;
+
+            return (double)allocatedBytes / latencies.length;
+        }
+
+        double getMegabytesPerSecond() {
+            if (allocatedBytes < 0) return -1;
+
+            return allocatedBytes * 1e9 / elapsedNanos / (1 << 20);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT,
+                    "%-36s %12.1f %10.1f %10.1f %10.1f %10.1f %12.0f %10.1f",
+                    name,
+                    getOpsPerSecond(),
+                    getPercentile(50) / 1e3,
+                    getPercentile(90) / 1e3,
+                    getPercentile(99) / 1e3,
+                    latencies[latencies.length - 1] / 1e3,
+                    getBytesPerOp(),
+                    getMegabytesPerSecond());
+        }
+    }
+}
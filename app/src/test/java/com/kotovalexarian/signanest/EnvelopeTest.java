@@ -0,0 +1,172 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.Envelope;
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.Metrics;
+import com.kotovalexarian.signanest.key_store.OwnException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class EnvelopeTest {
+    private static final byte[] TEXT = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+
+    private KeyStoreWrapper keyStoreWrapper;
+    private KeyWrapper foo;
+    private KeyWrapper bar;
+
+    @Before
+    public void beforeEach() throws OwnException {
+        keyStoreWrapper = Fixtures.keyStoreWrapper("foo", "bar");
+        foo = keyStoreWrapper.getByAlias("foo");
+        bar = keyStoreWrapper.getByAlias("bar");
+    }
+
+    private static Envelope reparse(final Envelope envelope) throws OwnException {
+        return Envelope.parse(ByteBuffer.wrap(envelope.toByteArray()));
+    }
+
+    @Test
+    public void signAndVerify() throws OwnException {
+        final Envelope envelope = reparse(Envelope.sign(bar, ByteBuffer.wrap(TEXT)));
+
+        assertEquals(Envelope.Scheme.SHA256_WITH_RSA, envelope.getScheme());
+        assertEquals(KeyAlgorithm.RSA, envelope.getScheme().getKeyAlgorithm());
+        assertArrayEquals(bar.getFingerprint(), envelope.getFingerprint());
+        assertEquals(Envelope.HEADER_SIZE + bar.getSignatureSize(), envelope.getSize());
+
+        assertSame(bar, envelope.findKey(keyStoreWrapper));
+        assertTrue(envelope.verify(keyStoreWrapper, ByteBuffer.wrap(TEXT)));
+        assertFalse(envelope.verify(foo, ByteBuffer.wrap(TEXT)));
+
+        final byte[] otherText = Arrays.copyOf(TEXT, TEXT.length + 1);
+        assertFalse(envelope.verify(keyStoreWrapper, ByteBuffer.wrap(otherText)));
+    }
+
+    @Test
+    public void encryptAndDecrypt() throws OwnException {
+        final Envelope envelope = reparse(Envelope.encrypt(foo, TEXT));
+
+        assertEquals(Envelope.Scheme.RSA_PKCS1, envelope.getScheme());
+        assertArrayEquals(TEXT, envelope.decrypt(keyStoreWrapper));
+
+        try {
+            envelope.decrypt(bar);
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+
+        try {
+            envelope.verify(foo, ByteBuffer.wrap(TEXT));
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void parseInPlace() throws OwnException {
+        final Envelope first = Envelope.sign(foo, ByteBuffer.wrap(TEXT));
+        final Envelope second = Envelope.encrypt(bar, TEXT);
+
+        final ByteBuffer buffer = ByteBuffer.allocate(first.getSize() + second.getSize() + 3);
+        buffer.put(new byte[] { 1, 2, 3 });
+        first.writeTo(buffer);
+        second.writeTo(buffer);
+        buffer.flip();
+        buffer.position(3);
+
+        final Envelope parsedFirst = Envelope.parse(buffer);
+        final Envelope parsedSecond = Envelope.parse(buffer);
+        assertFalse(buffer.hasRemaining());
+
+        assertEquals(first.getPayload(), parsedFirst.getPayload());
+        assertTrue(parsedFirst.verify(keyStoreWrapper, ByteBuffer.wrap(TEXT)));
+        assertArrayEquals(TEXT, parsedSecond.decrypt(keyStoreWrapper));
+
+        // The payload is a view of the buffer, not a copy.
+        buffer.put(3 + Envelope.HEADER_SIZE, (byte)(buffer.get(3 + Envelope.HEADER_SIZE) ^ 1));
+        assertFalse(parsedFirst.verify(keyStoreWrapper, ByteBuffer.wrap(TEXT)));
+    }
+
+    // Fingerprints and the keys that stay keep their cached public keys
+    // across refreshes, so a lookup reads none.
+    @Test
+    public void findKeyAfterRefresh() throws OwnException {
+        final Envelope envelope = Envelope.sign(foo, ByteBuffer.wrap(TEXT));
+        assertSame(foo, envelope.findKey(keyStoreWrapper));
+
+        keyStoreWrapper.create("car");
+        keyStoreWrapper.refresh();
+        Metrics.reset();
+
+        assertSame(foo, envelope.findKey(keyStoreWrapper));
+        assertEquals(0, Metrics.timer("phase.keystore.getCertificate").snapshot().getCount());
+
+        // A key created again under its alias has another fingerprint.
+        foo.delete();
+        keyStoreWrapper.create("foo");
+
+        try {
+            envelope.findKey(keyStoreWrapper);
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+
+        final KeyWrapper newFoo = keyStoreWrapper.getByAlias("foo");
+        final Envelope newEnvelope = Envelope.sign(newFoo, ByteBuffer.wrap(TEXT));
+        assertSame(newFoo, newEnvelope.findKey(keyStoreWrapper));
+    }
+
+    @Test
+    public void malformed() throws OwnException {
+        final byte[] serialized = Envelope.sign(foo, ByteBuffer.wrap(TEXT)).toByteArray();
+
+        final byte[][] inputs = {
+                Arrays.copyOf(serialized, 3),
+                Arrays.copyOf(serialized, serialized.length - 1),
+                withByte(serialized, 0, (byte)0),
+                withByte(serialized, 2, (byte)2),
+                withByte(serialized, 3, (byte)42),
+        };
+
+        for (byte[] input : inputs) {
+            final ByteBuffer buffer = ByteBuffer.wrap(input);
+            try {
+                Envelope.parse(buffer);
+                fail();
+            } catch (OwnException e) {
+                assertEquals(0, buffer.position());
+            }
+        }
+
+        final byte[] unknownKey = withByte(serialized, 4, (byte)(serialized[4] ^ 1));
+        try {
+            Envelope.parse(ByteBuffer.wrap(unknownKey)).findKey(keyStoreWrapper);
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] withByte(final byte[] bytes, final int index, final byte value) {
+        final byte[] result = bytes.clone();
+        result[index] = value;
+        return result;
+    }
+}
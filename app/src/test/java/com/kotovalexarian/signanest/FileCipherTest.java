@@ -0,0 +1,152 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.FileCipher;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.OwnException;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class FileCipherTest {
+    private static final int CHUNK_SIZE = 1024;
+    private static final int TAG_SIZE = 16;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private KeyWrapper keyWrapper;
+    private FileCipher fileCipher;
+
+    @Before
+    public void beforeEach() throws OwnException {
+        keyWrapper = Fixtures.keyStoreWrapper("foo").getByAlias("foo");
+        fileCipher = new FileCipher(CHUNK_SIZE, 2);
+    }
+
+    private byte[] encrypt(final byte[] plainText) throws OwnException {
+        final ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        fileCipher.encrypt(
+                keyWrapper,
+                Channels.newChannel(new ByteArrayInputStream(plainText)),
+                Channels.newChannel(cipherText));
+        return cipherText.toByteArray();
+    }
+
+    private byte[] decrypt(final byte[] cipherText) throws OwnException {
+        final ByteArrayOutputStream plainText = new ByteArrayOutputStream();
+        fileCipher.decrypt(
+                keyWrapper,
+                Channels.newChannel(new ByteArrayInputStream(cipherText)),
+                Channels.newChannel(plainText));
+        return plainText.toByteArray();
+    }
+
+    private void assertFails(final byte[] cipherText) {
+        try {
+            decrypt(cipherText);
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void streamRoundTrip() throws OwnException {
+        for (int size : new int[] { 0, 1, CHUNK_SIZE - 1, CHUNK_SIZE, CHUNK_SIZE + 1, 3 * CHUNK_SIZE + 5 }) {
+            final byte[] plainText = Fixtures.payload(size);
+            final byte[] cipherText = encrypt(plainText);
+
+            final int chunks = Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE);
+            final int headerSize = cipherText.length - size - chunks * TAG_SIZE;
+            assertEquals(11 + 256 + 8, headerSize);
+
+            assertArrayEquals(plainText, decrypt(cipherText));
+        }
+    }
+
+    @Test
+    public void tampering() throws OwnException {
+        final byte[] cipherText = encrypt(Fixtures.payload(3 * CHUNK_SIZE + 5));
+        final int frameSize = CHUNK_SIZE + TAG_SIZE;
+        final int headerSize = cipherText.length - 3 * frameSize - (5 + TAG_SIZE);
+
+        final byte[] flipped = cipherText.clone();
+        flipped[headerSize + frameSize + 10] ^= 1;
+        assertFails(flipped);
+
+        // Cut at a frame boundary, so the remaining frames are all whole.
+        assertFails(Arrays.copyOf(cipherText, headerSize + 2 * frameSize));
+
+        final byte[] swapped = cipherText.clone();
+        System.arraycopy(cipherText, headerSize, swapped, headerSize + frameSize, frameSize);
+        System.arraycopy(cipherText, headerSize + frameSize, swapped, headerSize, frameSize);
+        assertFails(swapped);
+    }
+
+    @Test
+    public void seek() throws IOException, OwnException {
+        final byte[] plainText = Fixtures.payload(5 * CHUNK_SIZE + 100);
+        final File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), encrypt(plainText));
+
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            for (int[] range : new int[][] { { 0, 10 }, { 1500, 2000 }, { 5 * CHUNK_SIZE + 50, 1000 } }) {
+                final ByteArrayOutputStream output = new ByteArrayOutputStream();
+                fileCipher.decrypt(keyWrapper, channel, range[0], range[1], Channels.newChannel(output));
+
+                final int to = Math.min(plainText.length, range[0] + range[1]);
+                assertArrayEquals(Arrays.copyOfRange(plainText, range[0], to), output.toByteArray());
+            }
+
+            for (long[] range : new long[][] { { -1, 10 }, { 10, -1 } }) {
+                try {
+                    fileCipher.decrypt(keyWrapper, channel, range[0], range[1],
+                            Channels.newChannel(new ByteArrayOutputStream()));
+                    fail();
+                } catch (OwnException e) {
+                    // Expected
+                }
+            }
+        }
+    }
+
+    // Large enough to be read through memory-mapped windows.
+    @Test
+    public void largeFile() throws IOException, OwnException {
+        final File plainFile = temporaryFolder.newFile();
+        final File cipherFile = temporaryFolder.newFile();
+        final File decryptedFile = temporaryFolder.newFile();
+
+        final byte[] block = Fixtures.payload(1024 * 1024);
+        try (FileOutputStream output = new FileOutputStream(plainFile)) {
+            for (int i = 0; i < 17; ++i) output.write(block);
+            output.write(block, 0, 123);
+        }
+
+        final FileCipher largeFileCipher = new FileCipher();
+        largeFileCipher.encrypt(keyWrapper, plainFile, cipherFile);
+        largeFileCipher.decrypt(keyWrapper, cipherFile, decryptedFile);
+
+        assertEquals(plainFile.length(), decryptedFile.length());
+        assertArrayEquals(
+                Files.readAllBytes(plainFile.toPath()),
+                Files.readAllBytes(decryptedFile.toPath()));
+    }
+}
@@ -0,0 +1,26 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import java.util.Random;
+
+// Test data shared by the tests and benchmarks of the key store package.
+final class Fixtures {
+    private Fixtures() {}
+
+    // Random bytes, seeded by the size, so every run sees the same data.
+    static byte[] payload(final int size) {
+        final byte[] payload = new byte[size];
+        new Random(size).nextBytes(payload);
+        return payload;
+    }
+
+    // A software key store with an RSA key under each of the aliases.
+    static KeyStoreWrapper keyStoreWrapper(final String... aliases) throws OwnException {
+        final KeyStoreWrapper keyStoreWrapper = new KeyStoreWrapper(new SoftwareKeyStoreProvider());
+        for (String alias : aliases) keyStoreWrapper.create(alias);
+        return keyStoreWrapper;
+    }
+}
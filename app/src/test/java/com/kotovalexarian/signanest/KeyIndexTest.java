@@ -0,0 +1,297 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyIndex;
+import com.kotovalexarian.signanest.key_store.KeyMetadataCache;
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class KeyIndexTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private File file;
+    private SoftwareKeyStoreProvider keyStoreProvider;
+    private KeyStoreWrapper keyStoreWrapper;
+
+    @Before
+    public void beforeEach() throws IOException, OwnException {
+        file = new File(temporaryFolder.getRoot(), "key_index.bin");
+        keyStoreProvider = new SoftwareKeyStoreProvider();
+        keyStoreWrapper = new KeyStoreWrapper(keyStoreProvider);
+    }
+
+    @Test
+    public void persistence() throws OwnException {
+        keyStoreWrapper.create("foo");
+        keyStoreWrapper.create("bar", KeyAlgorithm.EC);
+
+        final KeyIndex keyIndex = new KeyIndex(file);
+        keyIndex.putAll(Arrays.asList(
+                KeyIndex.entry(keyStoreWrapper.getByAlias("foo")),
+                KeyIndex.entry(keyStoreWrapper.getByAlias("bar"))));
+
+        final KeyIndex loaded = new KeyIndex(file);
+        assertEquals(Arrays.asList("bar", "foo"), loaded.getAliases());
+
+        final KeyIndex.Entry entry = loaded.get("foo");
+        assertEquals("RSA", entry.getMetadata().getAlgorithm());
+        assertEquals(2048, entry.getMetadata().getKeySize());
+        assertEquals(
+                keyStoreWrapper.getByAlias("foo").getMetadata().getCreationDate(),
+                entry.getMetadata().getCreationDate());
+        assertArrayEquals(
+                keyIndex.get("foo").getPublicKeyDigest(),
+                entry.getPublicKeyDigest());
+        assertTrue(entry.matches(keyStoreWrapper.getByAlias("foo")));
+        assertFalse(entry.matches(keyStoreWrapper.getByAlias("bar")));
+
+        loaded.retainAliases(Collections.singletonList("bar"));
+        assertEquals(Collections.singletonList("bar"), new KeyIndex(file).getAliases());
+    }
+
+    @Test
+    public void corruptFile() throws IOException {
+        try (FileOutputStream output = new FileOutputStream(file)) {
+            output.write(new byte[] { 0x53, 0x49, 0x44, 0x58, 0, 0, 0, 1, 0, 0, 0, 5 });
+        }
+
+        final KeyIndex keyIndex = new KeyIndex(file);
+        assertTrue(keyIndex.getAliases().isEmpty());
+        assertNull(keyIndex.get("foo"));
+    }
+
+    @Test
+    public void coldStart() throws InterruptedException, OwnException {
+        keyStoreWrapper.create("foo");
+        keyStoreWrapper.create("old");
+
+        final KeyIndex keyIndex = new KeyIndex(file);
+        keyIndex.putAll(Arrays.asList(
+                KeyIndex.entry(keyStoreWrapper.getByAlias("foo")),
+                KeyIndex.entry(keyStoreWrapper.getByAlias("old"))));
+
+        keyStoreWrapper.getByAlias("old").delete();
+        keyStoreWrapper.create("bar");
+
+        final AsyncKeyStoreWrapper asyncKeyStoreWrapper = new AsyncKeyStoreWrapper(
+                new Executor() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        command.run();
+                    }
+                },
+                keyStoreProvider,
+                null,
+                new KeyIndex(file));
+
+        // The list is there before the key store is loaded.
+        final CountDownLatch indexRead = new CountDownLatch(1);
+        asyncKeyStoreWrapper.readIndex(new AsyncKeyStoreWrapper.Callback<List<KeyIndex.Entry>>() {
+            @Override
+            public void onSuccess(final List<KeyIndex.Entry> entries) {
+                indexRead.countDown();
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {}
+        });
+        assertTrue(indexRead.await(10, TimeUnit.SECONDS));
+
+        assertEquals(2, asyncKeyStoreWrapper.getCount());
+        assertEquals("foo", asyncKeyStoreWrapper.getAlias(0));
+        assertEquals("old", asyncKeyStoreWrapper.getAlias(1));
+
+        final ArrayList<String> events = new ArrayList<>();
+        asyncKeyStoreWrapper.addChangeListener(new AsyncKeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final String alias) {
+                events.add("+" + position + " " + alias);
+            }
+
+            @Override
+            public void onRemoved(final int position, final String alias) {
+                events.add("-" + position + " " + alias);
+            }
+        });
+
+        final CountDownLatch loaded = new CountDownLatch(1);
+        asyncKeyStoreWrapper.load(new AsyncKeyStoreWrapper.Callback<Void>() {
+            @Override
+            public void onSuccess(final Void result) {
+                loaded.countDown();
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {}
+        });
+        assertTrue(loaded.await(10, TimeUnit.SECONDS));
+
+        assertEquals(Arrays.asList("+0 bar", "-2 old"), events);
+        assertEquals(2, asyncKeyStoreWrapper.getCount());
+        assertEquals("bar", asyncKeyStoreWrapper.getAlias(0));
+        assertEquals("foo", asyncKeyStoreWrapper.getAlias(1));
+
+        // The index is brought up to date too: keys that are gone are
+        // dropped, and the new one is added.
+        assertEquals(2, readIndex(asyncKeyStoreWrapper).size());
+        assertEquals(Arrays.asList("bar", "foo"), new KeyIndex(file).getAliases());
+    }
+
+    // Keys created through the wrapper are saved without ever being shown,
+    // so they are all listed on the next cold start.
+    @Test
+    public void createdKeysAreIndexed() throws InterruptedException, OwnException {
+        final Executor directExecutor = new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                command.run();
+            }
+        };
+
+        final AsyncKeyStoreWrapper asyncKeyStoreWrapper = new AsyncKeyStoreWrapper(
+                directExecutor,
+                keyStoreProvider,
+                null,
+                new KeyIndex(file));
+
+        final CountDownLatch created = new CountDownLatch(2);
+
+        asyncKeyStoreWrapper.create("foo", KeyAlgorithm.EC,
+                new AsyncKeyStoreWrapper.Callback<KeyWrapper>() {
+                    @Override
+                    public void onSuccess(final KeyWrapper result) {
+                        created.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(final OwnException e) {}
+                });
+        asyncKeyStoreWrapper.createAll(Arrays.asList("bar", "car"), KeyAlgorithm.EC,
+                new AsyncKeyStoreWrapper.Callback<Void>() {
+                    @Override
+                    public void onSuccess(final Void result) {
+                        created.countDown();
+                    }
+
+                    @Override
+                    public void onFailure(final OwnException e) {}
+                });
+        assertTrue(created.await(10, TimeUnit.SECONDS));
+
+        // Queued after the index updates of both refreshes.
+        readIndex(asyncKeyStoreWrapper);
+
+        final AsyncKeyStoreWrapper restarted = new AsyncKeyStoreWrapper(
+                directExecutor,
+                keyStoreProvider,
+                null,
+                new KeyIndex(file));
+
+        final List<KeyIndex.Entry> entries = readIndex(restarted);
+        assertEquals(3, entries.size());
+        assertEquals(3, restarted.getCount());
+        assertEquals("bar", restarted.getAlias(0));
+        assertEquals("car", restarted.getAlias(1));
+        assertEquals("foo", restarted.getAlias(2));
+        assertEquals("EC", entries.get(0).getMetadata().getAlgorithm());
+    }
+
+    // Saved metadata is shown at once, and replaced when its page is shown
+    // and the key turns out to have been created again.
+    @Test
+    public void uncheckedMetadata() throws InterruptedException, OwnException {
+        keyStoreWrapper.create("foo");
+
+        final KeyIndex keyIndex = new KeyIndex(file);
+        keyIndex.putAll(Collections.singletonList(KeyIndex.entry(keyStoreWrapper.getByAlias("foo"))));
+
+        keyStoreWrapper.getByAlias("foo").delete();
+        keyStoreWrapper.create("foo", KeyAlgorithm.EC);
+
+        // Callbacks run on the test thread, as they would on the main thread.
+        final LinkedBlockingQueue<Runnable> callbacks = new LinkedBlockingQueue<>();
+        final AsyncKeyStoreWrapper asyncKeyStoreWrapper = new AsyncKeyStoreWrapper(
+                new Executor() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        callbacks.add(command);
+                    }
+                },
+                keyStoreProvider,
+                null,
+                new KeyIndex(file));
+
+        final KeyMetadataCache keyMetadataCache = new KeyMetadataCache(asyncKeyStoreWrapper, 10);
+
+        final int[] loads = { 0 };
+        keyMetadataCache.addLoadListener(new KeyMetadataCache.OnLoadListener() {
+            @Override
+            public void onLoaded(final int from, final int to) {
+                ++loads[0];
+            }
+        });
+
+        while (loads[0] < 1) runCallback(callbacks);
+        assertEquals("RSA", keyMetadataCache.get(0).getAlgorithm());
+
+        while (loads[0] < 2) runCallback(callbacks);
+        assertEquals("EC", keyMetadataCache.get(0).getAlgorithm());
+        assertEquals("EC", new KeyIndex(file).get("foo").getMetadata().getAlgorithm());
+    }
+
+    private static List<KeyIndex.Entry> readIndex(final AsyncKeyStoreWrapper asyncKeyStoreWrapper)
+            throws InterruptedException
+    {
+        final LinkedBlockingQueue<List<KeyIndex.Entry>> result = new LinkedBlockingQueue<>();
+
+        asyncKeyStoreWrapper.readIndex(new AsyncKeyStoreWrapper.Callback<List<KeyIndex.Entry>>() {
+            @Override
+            public void onSuccess(final List<KeyIndex.Entry> entries) {
+                result.add(entries);
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {}
+        });
+
+        final List<KeyIndex.Entry> entries = result.poll(10, TimeUnit.SECONDS);
+        assertNotNull(entries);
+        return entries;
+    }
+
+    private static void runCallback(final LinkedBlockingQueue<Runnable> callbacks)
+            throws InterruptedException
+    {
+        final Runnable callback = callbacks.poll(10, TimeUnit.SECONDS);
+        assertNotNull(callback);
+        callback.run();
+    }
+}
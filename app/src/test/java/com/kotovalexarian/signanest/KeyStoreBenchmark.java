@@ -0,0 +1,203 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.spec.ECGenParameterSpec;
+
+import static org.junit.Assume.assumeTrue;
+
+// Latency and throughput of the key_store operations on the JVM, with
+// SoftwareKeyStoreProvider in place of AndroidKeyStore. The absolute
+// numbers say nothing about devices, but they do catch regressions in the
+// wrapper code itself. Skipped unless enabled:
+//
+//     ./gradlew testDebugUnitTest --tests '*KeyStoreBenchmark' -Pbenchmark=true
+public class KeyStoreBenchmark {
+    private static final int[] KEY_COUNTS = { 10, 100, 1000 };
+    private static final int[] PAYLOAD_SIZES = { 64, 1024, 65536 };
+
+    // Largest plain text for RSA-2048 with PKCS#1 v1.5 padding.
+    private static final int RSA_BLOCK_PAYLOAD_SIZE = 245;
+
+    private static KeyPair rsaKeyPair;
+    private static KeyPair ecKeyPair;
+
+    private final Benchmark benchmark = new Benchmark(
+            Long.getLong("signanest.benchmark.warmup", 500),
+            Long.getLong("signanest.benchmark.measurement", 1000));
+
+    @BeforeClass
+    public static void beforeAll() throws Exception {
+        assumeTrue(Boolean.getBoolean("signanest.benchmark"));
+
+        final KeyPairGenerator rsaGenerator = KeyPairGenerator.getInstance("RSA");
+        rsaGenerator.initialize(2048);
+        rsaKeyPair = rsaGenerator.generateKeyPair();
+
+        final KeyPairGenerator ecGenerator = KeyPairGenerator.getInstance("EC");
+        ecGenerator.initialize(new ECGenParameterSpec("secp256r1"));
+        ecKeyPair = ecGenerator.generateKeyPair();
+    }
+
+    @Before
+    public void beforeEach() {
+        System.out.println(Benchmark.header());
+    }
+
+    // Entries share one key pair, as only the number of aliases matters.
+    private static KeyStoreWrapper keyStoreWrapper(final int keyCount) throws Exception {
+        final SoftwareKeyStoreProvider keyStoreProvider = new SoftwareKeyStoreProvider();
+
+        for (int i = 0; i < keyCount; ++i) {
+            keyStoreProvider.importKeyPair(String.format("key%05d", i), rsaKeyPair);
+        }
+        keyStoreProvider.importKeyPair("ec", ecKeyPair);
+
+        return new KeyStoreWrapper(keyStoreProvider);
+    }
+
+    private void report(final String name, final Benchmark.Operation operation)
+            throws Exception
+    {
+        System.out.println(benchmark.run(name, operation));
+    }
+
+    @Test
+    public void refresh() throws Exception {
+        for (final int keyCount : KEY_COUNTS) {
+            final KeyStoreWrapper keyStoreWrapper = keyStoreWrapper(keyCount);
+
+            report("refresh keys=" + keyCount, new Benchmark.Operation() {
+                @Override
+                public void run() throws Exception {
+                    keyStoreWrapper.refresh();
+                }
+            });
+        }
+    }
+
+    @Test
+    public void getByAlias() throws Exception {
+        for (final int keyCount : KEY_COUNTS) {
+            final KeyStoreWrapper keyStoreWrapper = keyStoreWrapper(keyCount);
+            final String[] aliases = new String[keyCount];
+            for (int i = 0; i < keyCount; ++i) aliases[i] = String.format("key%05d", i);
+
+            report("getByAlias keys=" + keyCount, new Benchmark.Operation() {
+                private int next = 0;
+
+                @Override
+                public void run() throws Exception {
+                    keyStoreWrapper.getByAlias(aliases[next]);
+                    next = (next + 1) % aliases.length;
+                }
+            });
+        }
+    }
+
+    // Includes key generation, which dominates for RSA, and the refresh
+    // that follows it, which grows with the number of keys.
+    @Test
+    public void create() throws Exception {
+        for (final KeyAlgorithm keyAlgorithm : KeyAlgorithm.values()) {
+            final KeyStoreWrapper keyStoreWrapper = keyStoreWrapper(KEY_COUNTS[0]);
+
+            report("create " + keyAlgorithm.getName(), new Benchmark.Operation() {
+                private int next = 0;
+
+                @Override
+                public void run() throws Exception {
+                    keyStoreWrapper.create("new" + next++, keyAlgorithm);
+                }
+            });
+        }
+    }
+
+    @Test
+    public void signAndVerify() throws Exception {
+        final KeyStoreWrapper keyStoreWrapper = keyStoreWrapper(1);
+
+        for (final String alias : new String[] { "key00000", "ec" }) {
+            final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+            final String algorithm = keyWrapper.getAlgorithm();
+
+            for (final int payloadSize : PAYLOAD_SIZES) {
+                final byte[] text = Fixtures.payload(payloadSize);
+                final byte[] signature = keyWrapper.sign(text);
+
+                report("sign " + algorithm + " bytes=" + payloadSize, new Benchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        keyWrapper.sign(ByteBuffer.wrap(text));
+                    }
+                });
+
+                report("verify " + algorithm + " bytes=" + payloadSize, new Benchmark.Operation() {
+                    @Override
+                    public void run() throws Exception {
+                        keyWrapper.verify(ByteBuffer.wrap(text), signature);
+                    }
+                });
+            }
+        }
+    }
+
+    @Test
+    public void encryptAndDecrypt() throws Exception {
+        final KeyWrapper keyWrapper = keyStoreWrapper(1).getByAlias("key00000");
+
+        final byte[] block = Fixtures.payload(RSA_BLOCK_PAYLOAD_SIZE);
+        final byte[] encryptedBlock = keyWrapper.encrypt(block);
+
+        report("encrypt RSA block", new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                keyWrapper.encrypt(block);
+            }
+        });
+
+        report("decrypt RSA block", new Benchmark.Operation() {
+            @Override
+            public void run() throws Exception {
+                keyWrapper.decrypt(encryptedBlock);
+            }
+        });
+
+        for (final int payloadSize : PAYLOAD_SIZES) {
+            final byte[] plainText = Fixtures.payload(payloadSize);
+            final ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+            keyWrapper.encrypt(new ByteArrayInputStream(plainText), cipherText);
+            final byte[] envelope = cipherText.toByteArray();
+
+            report("encrypt envelope bytes=" + payloadSize, new Benchmark.Operation() {
+                @Override
+                public void run() throws Exception {
+                    keyWrapper.encrypt(
+                            new ByteArrayInputStream(plainText),
+                            new ByteArrayOutputStream(envelope.length));
+                }
+            });
+
+            report("decrypt envelope bytes=" + payloadSize, new Benchmark.Operation() {
+                @Override
+                public void run() throws Exception {
+                    keyWrapper.decrypt(
+                            new ByteArrayInputStream(envelope),
+                            new ByteArrayOutputStream(plainText.length));
+                }
+            });
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.MerkleSigner;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MerkleSignerTest {
+    private static final int CHUNK_SIZE = 1024;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private KeyWrapper keyWrapper;
+    private KeyWrapper otherKeyWrapper;
+    private MerkleSigner merkleSigner;
+
+    @Before
+    public void beforeEach() throws OwnException {
+        final KeyStoreWrapper keyStoreWrapper = Fixtures.keyStoreWrapper("foo", "bar");
+        keyWrapper = keyStoreWrapper.getByAlias("foo");
+        otherKeyWrapper = keyStoreWrapper.getByAlias("bar");
+        merkleSigner = new MerkleSigner(CHUNK_SIZE);
+    }
+
+    private File file(final byte[] content) throws IOException {
+        final File file = temporaryFolder.newFile();
+        Files.write(file.toPath(), content);
+        return file;
+    }
+
+    @Test
+    public void signAndVerify() throws IOException, OwnException {
+        for (int size : new int[] { 0, 1, CHUNK_SIZE, CHUNK_SIZE + 1, 37 * CHUNK_SIZE + 5 }) {
+            final File file = file(Fixtures.payload(size));
+            final MerkleSigner.Manifest manifest = merkleSigner.sign(keyWrapper, file);
+
+            assertEquals(size, manifest.getLength());
+            assertEquals(Math.max(1, (size + CHUNK_SIZE - 1) / CHUNK_SIZE), manifest.getChunkCount());
+
+            assertTrue(merkleSigner.verify(keyWrapper, file, manifest));
+            assertFalse(merkleSigner.verify(otherKeyWrapper, file, manifest));
+        }
+    }
+
+    @Test
+    public void tampering() throws IOException, OwnException {
+        final byte[] content = Fixtures.payload(10 * CHUNK_SIZE + 7);
+        final MerkleSigner.Manifest manifest = merkleSigner.sign(keyWrapper, file(content));
+
+        final byte[] flipped = content.clone();
+        flipped[5 * CHUNK_SIZE + 3] ^= 1;
+        assertFalse(merkleSigner.verify(keyWrapper, file(flipped), manifest));
+
+        final byte[] appended = new byte[content.length + 1];
+        System.arraycopy(content, 0, appended, 0, content.length);
+        assertFalse(merkleSigner.verify(keyWrapper, file(appended), manifest));
+
+        // The chunk hashes themselves are covered by the signed root.
+        final byte[] serialized = manifest.toByteArray();
+        serialized[4 + 1 + 4 + 8 + 4 + 3 * 32] ^= 1;
+        assertFalse(MerkleSigner.Manifest.parse(ByteBuffer.wrap(serialized)).verify(keyWrapper));
+    }
+
+    @Test
+    public void verifyChunk() throws IOException, OwnException {
+        final byte[] content = Fixtures.payload(10 * CHUNK_SIZE + 7);
+        final MerkleSigner.Manifest manifest = merkleSigner.sign(keyWrapper, file(content));
+
+        for (int index = 0; index < manifest.getChunkCount(); ++index) {
+            final int from = index * CHUNK_SIZE;
+            final int to = Math.min(content.length, from + CHUNK_SIZE);
+            final ByteBuffer chunk = ByteBuffer.wrap(content, from, to - from);
+
+            assertTrue(manifest.verifyChunk(keyWrapper, index, chunk));
+        }
+
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        System.arraycopy(content, 2 * CHUNK_SIZE, chunk, 0, CHUNK_SIZE);
+
+        assertFalse(manifest.verifyChunk(keyWrapper, 3, ByteBuffer.wrap(chunk)));
+        assertFalse(manifest.verifyChunk(otherKeyWrapper, 2, ByteBuffer.wrap(chunk)));
+        assertFalse(manifest.verifyChunk(keyWrapper, 10, ByteBuffer.wrap(chunk)));
+        assertFalse(manifest.verifyChunk(keyWrapper, 11, ByteBuffer.wrap(chunk)));
+
+        chunk[0] ^= 1;
+        assertFalse(manifest.verifyChunk(keyWrapper, 2, ByteBuffer.wrap(chunk)));
+    }
+
+    // The verified key is remembered by its public key, not by wrapper.
+    @Test
+    public void verifiedKey() throws IOException, OwnException {
+        final SoftwareKeyStoreProvider keyStoreProvider = new SoftwareKeyStoreProvider();
+        final KeyStoreWrapper keyStoreWrapper = new KeyStoreWrapper(keyStoreProvider);
+        keyStoreWrapper.create("foo");
+
+        final File file = file(Fixtures.payload(3 * CHUNK_SIZE));
+        final MerkleSigner.Manifest manifest =
+                merkleSigner.sign(keyStoreWrapper.getByAlias("foo"), file);
+        assertTrue(manifest.verify(keyStoreWrapper.getByAlias("foo")));
+
+        // Another wrapper of the same key.
+        assertTrue(manifest.verify(new KeyStoreWrapper(keyStoreProvider).getByAlias("foo")));
+
+        // Another key under the same alias.
+        keyStoreWrapper.getByAlias("foo").delete();
+        keyStoreWrapper.create("foo");
+        assertFalse(manifest.verify(keyStoreWrapper.getByAlias("foo")));
+    }
+
+    @Test
+    public void serialization() throws IOException, OwnException {
+        final MerkleSigner.Manifest manifest =
+                merkleSigner.sign(keyWrapper, file(Fixtures.payload(3 * CHUNK_SIZE)));
+        final byte[] serialized = manifest.toByteArray();
+
+        final MerkleSigner.Manifest parsed = MerkleSigner.Manifest.parse(ByteBuffer.wrap(serialized));
+        assertEquals(manifest, parsed);
+        assertArrayEquals(manifest.getRoot(), parsed.getRoot());
+        assertArrayEquals(serialized, parsed.toByteArray());
+
+        for (int length : new int[] { 0, 3, 20, serialized.length - 1 }) {
+            final ByteBuffer truncated = ByteBuffer.wrap(serialized, 0, length);
+            try {
+                MerkleSigner.Manifest.parse(truncated);
+                fail();
+            } catch (OwnException e) {
+                // Expected
+            }
+        }
+    }
+}
@@ -0,0 +1,126 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.Metrics;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class MetricsTest {
+    @Before
+    public void beforeEach() {
+        Metrics.reset();
+    }
+
+    @Test
+    public void timer() {
+        final Metrics.Timer timer = Metrics.timer("test.timer");
+
+        for (int i = 1; i <= 100; ++i) timer.record(i * 1000);
+
+        final Metrics.TimerSnapshot snapshot = timer.snapshot();
+        assertEquals(100, snapshot.getCount());
+        assertEquals(100000, snapshot.getMaxNanos());
+        assertEquals(50500, snapshot.getMeanNanos(), 0.1);
+
+        // Buckets are powers of two, so percentiles are upper bounds.
+        assertTrue(snapshot.getPercentileNanos(50) >= 50000);
+        assertTrue(snapshot.getPercentileNanos(50) < 2 * 50000);
+        assertEquals(100000, snapshot.getPercentileNanos(100));
+    }
+
+    @Test
+    public void disabled() {
+        final Metrics.Timer timer = Metrics.timer("test.disabled");
+
+        Metrics.setEnabled(false);
+        timer.stop(timer.start());
+        timer.record(1000);
+        Metrics.setEnabled(true);
+
+        assertEquals(0, timer.snapshot().getCount());
+        assertEquals(0, timer.snapshot().getFailedCount());
+    }
+
+    @Test
+    public void failures() throws OwnException {
+        final Metrics.Timer timer = Metrics.timer("test.failures");
+
+        timer.start();
+        timer.stop(timer.start());
+
+        final Metrics.TimerSnapshot snapshot = timer.snapshot();
+        assertEquals(1, snapshot.getCount());
+        assertEquals(1, snapshot.getFailedCount());
+
+        final KeyStoreWrapper keyStoreWrapper =
+                new KeyStoreWrapper(new SoftwareKeyStoreProvider());
+        keyStoreWrapper.create("foo");
+
+        try {
+            keyStoreWrapper.getByAlias("foo").decrypt(new byte[] { 1, 2, 3 });
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+
+        final Metrics.TimerSnapshot decrypt = Metrics.timer("key.decrypt").snapshot();
+        assertEquals(0, decrypt.getCount());
+        assertEquals(1, decrypt.getFailedCount());
+    }
+
+    @Test
+    public void keyStoreOperations() throws OwnException, InterruptedException {
+        final KeyStoreWrapper keyStoreWrapper =
+                new KeyStoreWrapper(new SoftwareKeyStoreProvider());
+        keyStoreWrapper.create("foo");
+
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+        assertTrue(keyWrapper.verify("Hello", keyWrapper.sign("Hello")));
+
+        final List<Metrics.TimerSnapshot> snapshots = Metrics.snapshotTimers();
+        final String export = Metrics.export();
+
+        assertTrue(snapshots.size() > 0);
+        assertTrue(export.contains("keyStore.create"));
+        assertTrue(export.contains("key.sign"));
+        assertTrue(export.contains("key.verify"));
+        assertTrue(export.contains("phase.engine.init"));
+
+        // Engines are per thread and earlier tests may have cached some on
+        // this one, so count on a fresh thread, which starts with none.
+        final Throwable[] failure = new Throwable[1];
+        final Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Metrics.reset();
+                    for (int i = 0; i < 2; ++i) {
+                        assertTrue(keyWrapper.verify("Hello", keyWrapper.sign("Hello")));
+                    }
+                } catch (Throwable e) {
+                    failure[0] = e;
+                }
+            }
+        });
+        thread.start();
+        thread.join();
+        if (failure[0] != null) throw new AssertionError(failure[0]);
+
+        final Map<String, Long> counters = Metrics.snapshotCounters();
+        assertEquals(Long.valueOf(2), counters.get("engine.created"));
+        assertEquals(Long.valueOf(2), counters.get("engine.reused"));
+        assertFalse(counters.containsKey("engine.reinitialized"));
+    }
+}
@@ -0,0 +1,231 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SigningClient;
+import com.kotovalexarian.signanest.key_store.SigningServer;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+// A loopback TCP socket stands in for the local socket of SigningService.
+public class SigningServerTest {
+    private KeyStoreWrapper keyStoreWrapper;
+    private SigningServer signingServer;
+    private ServerSocket serverSocket;
+    private final ArrayList<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void beforeEach() throws IOException, OwnException {
+        keyStoreWrapper = new KeyStoreWrapper(new SoftwareKeyStoreProvider());
+        signingServer = new SigningServer(keyStoreWrapper);
+
+        // Created after the server, which sees them through the shared wrapper.
+        keyStoreWrapper.create("foo");
+        keyStoreWrapper.create("bar", KeyAlgorithm.EC);
+
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (true) {
+                    final Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (IOException e) {
+                        return;
+                    }
+
+                    new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                signingServer.serve(
+                                        socket.getInputStream(),
+                                        socket.getOutputStream());
+                            } catch (IOException e) {
+                                // Client is gone.
+                            }
+                        }
+                    }).start();
+                }
+            }
+        }).start();
+    }
+
+    @After
+    public void afterEach() throws IOException {
+        for (Socket socket : sockets) socket.close();
+        serverSocket.close();
+        signingServer.close();
+    }
+
+    private SigningClient connect() throws IOException {
+        final Socket socket = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        synchronized (sockets) {
+            sockets.add(socket);
+        }
+        return new SigningClient(socket.getInputStream(), socket.getOutputStream());
+    }
+
+    private static byte[] text(final int i) {
+        return ("Hello " + i).getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Sends all requests before reading any response.
+    private void signPipelined(final SigningClient client, final int count)
+            throws IOException, OwnException
+    {
+        final HashMap<Integer, Integer> texts = new HashMap<>();
+
+        for (int i = 0; i < count; ++i) {
+            texts.put(client.sign(i % 2 == 0 ? "foo" : "bar", text(i)), i);
+        }
+        client.flush();
+
+        for (int i = 0; i < count; ++i) {
+            final SigningClient.Response response = client.receive();
+            final int index = texts.remove(response.getId());
+
+            assertTrue(response.getError(), response.isSuccess());
+            assertTrue(keyStoreWrapper
+                    .getByAlias(index % 2 == 0 ? "foo" : "bar")
+                    .verify(text(index), response.getResult()));
+        }
+
+        assertTrue(texts.isEmpty());
+    }
+
+    @Test
+    public void pipelinedSigning() throws IOException, OwnException {
+        signPipelined(connect(), 200);
+    }
+
+    @Test
+    public void concurrentClients() throws Exception {
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        final ArrayList<Future<Void>> futures = new ArrayList<>();
+
+        try {
+            for (int i = 0; i < 4; ++i) {
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        signPipelined(connect(), 50);
+                        return null;
+                    }
+                }));
+            }
+
+            for (Future<Void> future : futures) future.get();
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void verifyAndDecrypt() throws IOException, OwnException {
+        final byte[] signature = keyStoreWrapper.getByAlias("bar").sign(text(1));
+        final byte[] cipherText = keyStoreWrapper.getByAlias("foo").encrypt(text(2));
+
+        final SigningClient client = connect();
+        final int valid = client.verify("bar", text(1), signature);
+        final int invalid = client.verify("bar", text(3), signature);
+        final int decrypted = client.decrypt("foo", cipherText);
+        client.flush();
+
+        final HashMap<Integer, SigningClient.Response> responses = new HashMap<>();
+        for (int i = 0; i < 3; ++i) {
+            final SigningClient.Response response = client.receive();
+            responses.put(response.getId(), response);
+        }
+
+        assertTrue(responses.get(valid).isVerified());
+        assertFalse(responses.get(invalid).isVerified());
+        assertArrayEquals(text(2), responses.get(decrypted).getResult());
+    }
+
+    @Test
+    public void errors() throws IOException {
+        final int[] refreshes = {0};
+        keyStoreWrapper.addRefreshListener(new Runnable() {
+            @Override
+            public void run() {
+                ++refreshes[0];
+            }
+        });
+
+        final SigningClient client = connect();
+        final int unknown = client.sign("car", text(1));
+        final int unsupported = client.decrypt("bar", text(2));
+        client.flush();
+
+        final HashMap<Integer, SigningClient.Response> responses = new HashMap<>();
+        for (int i = 0; i < 2; ++i) {
+            final SigningClient.Response response = client.receive();
+            responses.put(response.getId(), response);
+        }
+
+        assertFalse(responses.get(unknown).isSuccess());
+        assertEquals("Alias doesn't exist", responses.get(unknown).getError());
+        assertFalse(responses.get(unsupported).isSuccess());
+
+        // Unknown aliases come from the peer and must not reload the keys.
+        assertEquals(0, refreshes[0]);
+    }
+
+    // More data than may be queued at once, so reading has to wait for
+    // responses to free some of it.
+    @Test
+    public void queuedSizeLimit() throws IOException, OwnException {
+        final byte[] text = new byte[1 << 20];
+        final int count = 20;
+
+        final SigningClient client = connect();
+        for (int i = 0; i < count; ++i) client.sign("foo", text);
+        client.flush();
+
+        for (int i = 0; i < count; ++i) {
+            final SigningClient.Response response = client.receive();
+            assertTrue(response.getError(), response.isSuccess());
+            assertTrue(keyStoreWrapper.getByAlias("foo").verify(text, response.getResult()));
+        }
+    }
+
+    // Every request gets a response, an error if it was still queued.
+    @Test
+    public void closeWithQueuedRequests() throws IOException {
+        final SigningClient client = connect();
+        final int count = 200;
+
+        for (int i = 0; i < count; ++i) client.sign("foo", text(i));
+        client.flush();
+        signingServer.close();
+
+        for (int i = 0; i < count; ++i) {
+            final SigningClient.Response response = client.receive();
+            if (!response.isSuccess()) assertEquals("Server closed", response.getError());
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package com.kotovalexarian.signanest;
+
+import com.kotovalexarian.signanest.key_store.AsyncKeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.FileCipher;
+import com.kotovalexarian.signanest.key_store.KeyAlgorithm;
+import com.kotovalexarian.signanest.key_store.KeyMetadata;
+import com.kotovalexarian.signanest.key_store.KeyPool;
+import com.kotovalexarian.signanest.key_store.KeyStoreProvider;
+import com.kotovalexarian.signanest.key_store.KeyStoreWrapper;
+import com.kotovalexarian.signanest.key_store.KeyWrapper;
+import com.kotovalexarian.signanest.key_store.Metrics;
+import com.kotovalexarian.signanest.key_store.OwnException;
+import com.kotovalexarian.signanest.key_store.SoftwareKeyStoreProvider;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.PrivateKey;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+// The key store tests that don't depend on AndroidKeyStore itself, run
+// on the JVM with the software provider.
+public class SoftwareKeyStoreWrapperTest {
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private KeyStoreWrapper keyStoreWrapper;
+
+    @Before
+    public void beforeEach() throws OwnException {
+        keyStoreWrapper = new KeyStoreWrapper(new SoftwareKeyStoreProvider());
+    }
+
+    @Test
+    public void aliases() throws OwnException {
+        assertEquals(0, keyStoreWrapper.getCount());
+        keyStoreWrapper.create("foo");
+        keyStoreWrapper.create("bar", KeyAlgorithm.EC);
+        assertEquals(2, keyStoreWrapper.getCount());
+
+        assertEquals("bar", keyStoreWrapper.getByPosition(0).getAlias());
+        assertEquals("foo", keyStoreWrapper.getByPosition(1).getAlias());
+
+        keyStoreWrapper.getByAlias("bar").delete();
+        assertEquals(1, keyStoreWrapper.getCount());
+        assertEquals("foo", keyStoreWrapper.getByPosition(0).getAlias());
+    }
+
+    // A single key changes the list without a refresh. A refresh finds the
+    // changes made by another wrapper, and keeps the wrappers that stay.
+    @Test
+    public void changes() throws OwnException {
+        final ArrayList<String> changes = new ArrayList<>();
+        keyStoreWrapper.addChangeListener(new KeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final KeyWrapper keyWrapper) {
+                changes.add("+" + position + " " + keyWrapper.getAlias());
+            }
+
+            @Override
+            public void onRemoved(final int position, final KeyWrapper keyWrapper) {
+                changes.add("-" + position + " " + keyWrapper.getAlias());
+            }
+        });
+
+        Metrics.reset();
+
+        keyStoreWrapper.create("foo", KeyAlgorithm.EC);
+        keyStoreWrapper.create("bar", KeyAlgorithm.EC);
+        keyStoreWrapper.create("car", KeyAlgorithm.EC);
+        keyStoreWrapper.getByAlias("bar").delete();
+
+        assertEquals(Arrays.asList("+0 foo", "+0 bar", "+1 car", "-0 bar"), changes);
+        assertEquals(0, Metrics.timer("keyStore.refresh").snapshot().getCount());
+
+        final KeyWrapper foo = keyStoreWrapper.getByAlias("foo");
+        final KeyStoreWrapper other = new KeyStoreWrapper(keyStoreWrapper.getKeyStoreProvider());
+        other.getByAlias("car").delete();
+        other.create("dar", KeyAlgorithm.EC);
+        other.create("eel", KeyAlgorithm.EC);
+        changes.clear();
+
+        keyStoreWrapper.refresh();
+
+        assertEquals(Arrays.asList("-0 car", "+0 dar", "+1 eel"), changes);
+        assertEquals(3, keyStoreWrapper.getCount());
+        assertSame(foo, keyStoreWrapper.getByPosition(2));
+    }
+
+    @Test
+    public void createAllAndDeleteAll() throws OwnException {
+        final int[] refreshes = { 0 };
+        keyStoreWrapper.addRefreshListener(new Runnable() {
+            @Override
+            public void run() {
+                ++refreshes[0];
+            }
+        });
+
+        keyStoreWrapper.createAll(Arrays.asList("foo", "bar", "car"), KeyAlgorithm.EC, 3);
+        assertEquals(1, refreshes[0]);
+        assertEquals(3, keyStoreWrapper.getCount());
+        assertEquals("bar", keyStoreWrapper.getByPosition(0).getAlias());
+
+        keyStoreWrapper.deleteAll(Arrays.asList("foo", "car"), 2);
+        assertEquals(2, refreshes[0]);
+        assertEquals(1, keyStoreWrapper.getCount());
+        assertEquals("bar", keyStoreWrapper.getByPosition(0).getAlias());
+    }
+
+    // Readers run while keys are created and deleted, and must always see
+    // a complete, sorted list.
+    @Test
+    public void concurrentReaders() throws Exception {
+        keyStoreWrapper.create("anchor", KeyAlgorithm.EC);
+
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final ArrayList<Thread> readers = new ArrayList<>();
+
+        for (int i = 0; i < 4; ++i) {
+            final Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        while (!done.get()) {
+                            final List<KeyWrapper> keyWrappers = keyStoreWrapper.getAll();
+
+                            for (int position = 1; position < keyWrappers.size(); ++position) {
+                                assertTrue(keyWrappers.get(position - 1).getAlias()
+                                        .compareTo(keyWrappers.get(position).getAlias()) < 0);
+                            }
+
+                            assertEquals("anchor", keyStoreWrapper.getByAlias("anchor").getAlias());
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            });
+            reader.start();
+            readers.add(reader);
+        }
+
+        final ArrayList<String> aliases = new ArrayList<>();
+        for (int i = 0; i < 20; ++i) aliases.add("key" + i);
+
+        for (int round = 0; round < 3; ++round) {
+            for (String alias : aliases) keyStoreWrapper.create(alias, KeyAlgorithm.EC);
+            keyStoreWrapper.deleteAll(aliases);
+        }
+
+        done.set(true);
+        for (Thread reader : readers) reader.join();
+
+        if (failure.get() != null) throw new AssertionError(failure.get());
+        assertEquals(1, keyStoreWrapper.getCount());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void snapshotIsUnmodifiable() throws OwnException {
+        keyStoreWrapper.create("foo", KeyAlgorithm.EC);
+        keyStoreWrapper.getAll().clear();
+    }
+
+    // One of the keys can't be generated, so neither the generated nor the
+    // claimed keys may be left behind.
+    @Test
+    public void createAllRollsBack() throws OwnException {
+        final File aliasMapFile = new File(temporaryFolder.getRoot(), "alias_map");
+        final KeyPool keyPool = new KeyPool(aliasMapFile, KeyAlgorithm.EC, 1, KeyPool.RefillPolicy.MANUAL);
+        final KeyStoreWrapper pooledKeyStoreWrapper =
+                new KeyStoreWrapper(new FailingKeyStoreProvider("car", 0), keyPool);
+
+        pooledKeyStoreWrapper.refillKeyPool();
+        assertEquals(1, keyPool.getSpareCount());
+
+        try {
+            pooledKeyStoreWrapper.createAll(Arrays.asList("foo", "bar", "car"), KeyAlgorithm.EC, 2);
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+
+        assertEquals(0, pooledKeyStoreWrapper.getCount());
+        assertEquals(1, keyPool.getSpareCount());
+
+        pooledKeyStoreWrapper.createAll(Arrays.asList("foo", "bar"), KeyAlgorithm.EC, 2);
+        assertEquals(2, pooledKeyStoreWrapper.getCount());
+        assertEquals(0, keyPool.getSpareCount());
+    }
+
+    @Test
+    public void createAllWaitsForRunningSlices() throws OwnException {
+        final FailingKeyStoreProvider provider = new FailingKeyStoreProvider("car", 100);
+        final KeyStoreWrapper failingKeyStoreWrapper = new KeyStoreWrapper(provider);
+
+        // The calling thread fails on its first alias while the other slice
+        // is still generating, and the rollback has to wait for it.
+        try {
+            failingKeyStoreWrapper.createAll(
+                    Arrays.asList("car", "dar", "foo", "bar"), KeyAlgorithm.EC, 2);
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+
+        assertEquals(0, provider.generating.get());
+        assertEquals(0, failingKeyStoreWrapper.getCount());
+
+        failingKeyStoreWrapper.refresh();
+        assertEquals(0, failingKeyStoreWrapper.getCount());
+    }
+
+    // Rejected by the binary methods, which the String ones go through.
+    @Test
+    public void emptyInput() throws OwnException {
+        keyStoreWrapper.create("foo");
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+        final byte[] signature = keyWrapper.sign("text".getBytes(StandardCharsets.UTF_8));
+
+        try {
+            keyWrapper.sign(ByteBuffer.allocate(0));
+            fail();
+        } catch (OwnException e) {
+            assertEquals("Empty text", e.getMessage());
+        }
+
+        try {
+            keyWrapper.verify(new byte[0], signature);
+            fail();
+        } catch (OwnException e) {
+            assertEquals("Empty text", e.getMessage());
+        }
+
+        try {
+            keyWrapper.verify("text".getBytes(StandardCharsets.UTF_8), new byte[0]);
+            fail();
+        } catch (OwnException e) {
+            assertEquals("Empty signature", e.getMessage());
+        }
+
+        try {
+            keyWrapper.sign("");
+            fail();
+        } catch (OwnException e) {
+            assertEquals("Empty text", e.getMessage());
+        }
+    }
+
+    @Test(expected = OwnException.class)
+    public void createAllWithDuplicateAliases() throws OwnException {
+        keyStoreWrapper.createAll(Arrays.asList("foo", "foo"), KeyAlgorithm.EC, 2);
+    }
+
+    @Test
+    public void encryptionAndSigning() throws OwnException {
+        keyStoreWrapper.create("foo");
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+
+        final byte[] text = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+
+        assertArrayEquals(text, keyWrapper.decrypt(keyWrapper.encrypt(text)));
+        assertTrue(keyWrapper.verify(text, keyWrapper.sign(text)));
+        assertFalse(keyWrapper.verify(new byte[] { 1 }, keyWrapper.sign(text)));
+    }
+
+    @Test
+    public void signingIntoBuffers() throws OwnException {
+        keyStoreWrapper.create("rsa");
+        keyStoreWrapper.create("ec", KeyAlgorithm.EC);
+
+        final byte[] text = "Hello, World!".getBytes(StandardCharsets.UTF_8);
+
+        for (String alias : new String[] { "rsa", "ec" }) {
+            final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias(alias);
+            final int size = keyWrapper.getSignatureSize();
+
+            for (ByteBuffer buffer : new ByteBuffer[] {
+                    ByteBuffer.allocate(size + 10),
+                    ByteBuffer.allocateDirect(size + 10) }) {
+                buffer.position(3);
+                assertEquals(size, keyWrapper.sign(ByteBuffer.wrap(text), buffer));
+                assertEquals(3 + size, buffer.position());
+
+                buffer.flip();
+                buffer.position(3);
+                assertTrue(keyWrapper.verify(ByteBuffer.wrap(text), buffer));
+                assertFalse(buffer.hasRemaining());
+            }
+
+            // Nothing is consumed when the output doesn't fit.
+            final ByteBuffer textBuffer = ByteBuffer.wrap(text);
+            try {
+                keyWrapper.sign(textBuffer, ByteBuffer.allocate(size - 1));
+                fail();
+            } catch (OwnException e) {
+                assertEquals(0, textBuffer.position());
+            }
+        }
+    }
+
+    // Streams use the chunked format of FileCipher, so they can be larger
+    // than one chunk and still decrypt to the same bytes.
+    @Test
+    public void encryptionOfStreams() throws OwnException {
+        keyStoreWrapper.create("foo");
+        final KeyWrapper keyWrapper = keyStoreWrapper.getByAlias("foo");
+
+        final byte[] plainText = new byte[3 * FileCipher.DEFAULT_CHUNK_SIZE + 17];
+        new Random(1).nextBytes(plainText);
+
+        final ByteArrayOutputStream cipherText = new ByteArrayOutputStream();
+        keyWrapper.encrypt(new ByteArrayInputStream(plainText), cipherText);
+
+        final ByteArrayOutputStream decrypted = new ByteArrayOutputStream();
+        keyWrapper.decrypt(new ByteArrayInputStream(cipherText.toByteArray()), decrypted);
+        assertArrayEquals(plainText, decrypted.toByteArray());
+
+        final ByteArrayOutputStream fileDecrypted = new ByteArrayOutputStream();
+        new FileCipher().decrypt(
+                keyWrapper,
+                Channels.newChannel(new ByteArrayInputStream(cipherText.toByteArray())),
+                Channels.newChannel(fileDecrypted));
+        assertArrayEquals(plainText, fileDecrypted.toByteArray());
+    }
+
+    @Test
+    public void asyncUncheckedFailure() throws InterruptedException {
+        final AsyncKeyStoreWrapper asyncKeyStoreWrapper = new AsyncKeyStoreWrapper(
+                new Executor() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        command.run();
+                    }
+                },
+                new SoftwareKeyStoreProvider(),
+                null);
+
+        final CountDownLatch failed = new CountDownLatch(1);
+        final AtomicReference<OwnException> failure = new AtomicReference<>();
+
+        asyncKeyStoreWrapper.submit(new AsyncKeyStoreWrapper.Operation<Void>() {
+            @Override
+            public Void run(final KeyStoreWrapper keyStoreWrapper) {
+                throw new IllegalStateException();
+            }
+        }, new AsyncKeyStoreWrapper.Callback<Void>() {
+            @Override
+            public void onSuccess(final Void result) {}
+
+            @Override
+            public void onFailure(final OwnException e) {
+                failure.set(e);
+                failed.countDown();
+            }
+        });
+
+        assertTrue(failed.await(10, TimeUnit.SECONDS));
+        assertTrue(failure.get().getCause() instanceof IllegalStateException);
+    }
+
+    // A key created through the shared wrapper shows up in the async list.
+    @Test
+    public void asyncShare() throws InterruptedException, OwnException {
+        final AsyncKeyStoreWrapper asyncKeyStoreWrapper = new AsyncKeyStoreWrapper(
+                new Executor() {
+                    @Override
+                    public void execute(final Runnable command) {
+                        command.run();
+                    }
+                },
+                new SoftwareKeyStoreProvider(),
+                null);
+
+        final CountDownLatch shared = new CountDownLatch(1);
+        final AtomicReference<KeyStoreWrapper> sharedKeyStoreWrapper = new AtomicReference<>();
+
+        asyncKeyStoreWrapper.share(new AsyncKeyStoreWrapper.Callback<KeyStoreWrapper>() {
+            @Override
+            public void onSuccess(final KeyStoreWrapper result) {
+                sharedKeyStoreWrapper.set(result);
+                shared.countDown();
+            }
+
+            @Override
+            public void onFailure(final OwnException e) {}
+        });
+
+        assertTrue(shared.await(10, TimeUnit.SECONDS));
+
+        final CountDownLatch inserted = new CountDownLatch(1);
+        asyncKeyStoreWrapper.addChangeListener(new AsyncKeyStoreWrapper.OnChangeListener() {
+            @Override
+            public void onInserted(final int position, final String alias) {
+                inserted.countDown();
+            }
+
+            @Override
+            public void onRemoved(final int position, final String alias) {}
+        });
+
+        sharedKeyStoreWrapper.get().create("foo", KeyAlgorithm.EC);
+
+        assertTrue(inserted.await(10, TimeUnit.SECONDS));
+        assertEquals("foo", asyncKeyStoreWrapper.getAlias(0));
+    }
+
+    // A claim that can't be saved must leave the key spare, not half
+    // claimed, or it could be claimed again under another alias.
+    @Test
+    public void keyPoolClaimWithFailedSave() throws IOException, OwnException {
+        final File aliasMapFile = new File(temporaryFolder.getRoot(), "alias_map");
+        final KeyPool keyPool = new KeyPool(aliasMapFile, KeyAlgorithm.RSA, 1, KeyPool.RefillPolicy.MANUAL);
+        final KeyStoreWrapper pooledKeyStoreWrapper =
+                new KeyStoreWrapper(new SoftwareKeyStoreProvider(), keyPool);
+
+        pooledKeyStoreWrapper.refillKeyPool();
+        assertEquals(1, keyPool.getSpareCount());
+
+        // The map is written through this temporary file.
+        final File blocker = new File(aliasMapFile.getPath() + ".tmp");
+        assertTrue(blocker.mkdir());
+
+        try {
+            pooledKeyStoreWrapper.create("foo");
+            fail();
+        } catch (OwnException e) {
+            // Expected
+        }
+
+        pooledKeyStoreWrapper.refresh();
+        assertEquals(1, keyPool.getSpareCount());
+        assertEquals(0, pooledKeyStoreWrapper.getCount());
+
+        assertTrue(blocker.delete());
+        pooledKeyStoreWrapper.create("bar");
+        pooledKeyStoreWrapper.refresh();
+
+        assertEquals(0, keyPool.getSpareCount());
+        assertEquals(1, pooledKeyStoreWrapper.getCount());
+        assertEquals("bar", pooledKeyStoreWrapper.getByPosition(0).getAlias());
+    }
+
+    @Test
+    public void getMetadata() throws OwnException {
+        keyStoreWrapper.create("foo", KeyAlgorithm.EC);
+
+        final KeyMetadata keyMetadata = keyStoreWrapper.getByAlias("foo").getMetadata();
+
+        assertEquals("foo", keyMetadata.getAlias());
+        assertEquals("EC", keyMetadata.getAlgorithm());
+        assertEquals(256, keyMetadata.getKeySize());
+        assertFalse(keyMetadata.isHardwareBacked());
+    }
+
+    @Test(expected = KeyStoreException.class)
+    public void certificateEntriesAreRejected() throws Exception {
+        final SoftwareKeyStoreProvider keyStoreProvider = new SoftwareKeyStoreProvider();
+        new KeyStoreWrapper(keyStoreProvider).create("foo");
+
+        final KeyStore keyStore = keyStoreProvider.loadKeyStore();
+        assertNotNull(keyStore.getCertificate("foo"));
+        keyStore.setCertificateEntry("bar", keyStore.getCertificate("foo"));
+    }
+
+    @Test(expected = OwnException.class)
+    public void creatingAliasThatAlreadyExists() throws OwnException {
+        keyStoreWrapper.create("foo");
+        keyStoreWrapper.create("foo");
+    }
+
+    // Fails to generate the given alias, and takes its time with the others.
+    private static final class FailingKeyStoreProvider implements KeyStoreProvider {
+        private final SoftwareKeyStoreProvider provider = new SoftwareKeyStoreProvider();
+        private final String failingAlias;
+        private final long delayMillis;
+
+        private final AtomicInteger generating = new AtomicInteger();
+
+        private FailingKeyStoreProvider(final String failingAlias, final long delayMillis) {
+            this.failingAlias = failingAlias;
+            this.delayMillis = delayMillis;
+        }
+
+        @Override
+        public KeyStore loadKeyStore() throws OwnException {
+            return provider.loadKeyStore();
+        }
+
+        @Override
+        public void generateKeyPair(
+                final KeyStore keyStore,
+                final String entryAlias,
+                final KeyAlgorithm keyAlgorithm
+        )
+                throws OwnException
+        {
+            final boolean failing = entryAlias.equals(failingAlias);
+
+            generating.incrementAndGet();
+
+            try {
+                // The failing alias gives up halfway, when the others are
+                // well under way.
+                waitUninterruptibly(failing ? delayMillis / 2 : delayMillis);
+
+                if (failing) throw new OwnException("Can not generate key");
+
+                provider.generateKeyPair(keyStore, entryAlias, keyAlgorithm);
+            } finally {
+                generating.decrementAndGet();
+            }
+        }
+
+        // Like real key generation, it doesn't stop when interrupted.
+        private static void waitUninterruptibly(final long millis) {
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+            boolean interrupted = false;
+
+            while (System.nanoTime() < deadline) {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+
+        @Override
+        public KeyMetadata getMetadata(
+                final KeyStore keyStore,
+                final String alias,
+                final String entryAlias,
+                final PrivateKey privateKey
+        )
+                throws OwnException
+        {
+            return provider.getMetadata(keyStore, alias, entryAlias, privateKey);
+        }
+    }
+}